@@ -13,7 +13,9 @@ class CallConfiguration(rootClass: PsiClass,
                         var graphTraversal: GraphTraversal,
                         var details: CallDiagramDetails) : DiagramConfiguration(rootClass) {
 
-        override fun restrictionFilter() = GraphRestrictionFilter(rootClass.reference(), rootMethod?.id(), projectClassification, graphRestriction)
+        override fun restrictionFilter() = GraphRestrictionFilter(projectClassification, graphRestriction)
+
+        fun forMethod(method: PsiMethod) = CallConfiguration(rootClass, method, projectClassification, graphRestriction, graphTraversal, details)
 
         override fun traversalFilter(rootNode: GraphNode) = GraphTraversalFilter(rootNode, projectClassification, graphTraversal)
 }
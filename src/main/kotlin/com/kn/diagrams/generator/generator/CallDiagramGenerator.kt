@@ -6,68 +6,76 @@ import com.kn.diagrams.generator.builder.DotDiagramBuilder
 import com.kn.diagrams.generator.config.CallConfiguration
 import com.kn.diagrams.generator.config.attacheMetaData
 import com.kn.diagrams.generator.graph.GraphCache
+import com.kn.diagrams.generator.graph.GraphCacheService
+import com.kn.diagrams.generator.graph.TraversalMemo
 import com.kn.diagrams.generator.graph.isPrivate
 import com.kn.diagrams.generator.graph.reference
 import com.kn.diagrams.generator.inReadAction
 import com.kn.diagrams.generator.notifications.notifyErrorMissingPublicMethod
 import com.kn.diagrams.generator.toSingleList
+import java.util.stream.Collectors
 
 
 class CallDiagramGenerator {
 
     fun createUmlContent(config: CallConfiguration): List<Pair<String, String>> {
-        return config.perPublicMethod { rootMethod ->
-            val project = inReadAction { config.rootClass.project }
-            val restrictionFilter = inReadAction { config.restrictionFilter() }
-
-            val cache = GraphCache(project, restrictionFilter, config.projectClassification.searchMode)
-            val root = inReadAction { cache.methodFor(rootMethod)!! }
-
-            val edges = cache.search(config.traversalFilter(root)) {
-                roots = root.toSingleList()
-                forwardDepth = config.graphTraversal.forwardDepth
-                backwardDepth = config.graphTraversal.backwardDepth
-                edgeMode = config.details.edgeMode
-            }.flatten()
-
-            val dot = DotDiagramBuilder()
-            val visualizationConfig = inReadAction { config.visualizationConfig(cache) }
-            dot.direction = DiagramDirection.LeftToRight
-
-            when (config.details.aggregation) {
-                Aggregation.ByClass -> dot.aggregateByClass(edges, visualizationConfig)
-                Aggregation.GroupByClass -> dot.groupByClass(edges, visualizationConfig)
-                Aggregation.None -> dot.noAggregation(edges, visualizationConfig)
-            }
-
-            dot.create()
+        val rootMethods = config.publicRootMethods()
+
+        if (rootMethods.isEmpty()) {
+            notifyErrorMissingPublicMethod(inReadAction { config.rootClass.project }, config.rootClass, config.rootMethod)
+            return emptyList()
+        }
+
+        val project = inReadAction { config.rootClass.project }
+        val restrictionFilter = inReadAction { config.restrictionFilter() }
+
+        return GraphCacheService.instance(project).withCache(config.rootClass, rootMethods, config.projectClassification, restrictionFilter, config.graphTraversal) { cache ->
+            // the cache is read-only while it is used, so all methods can be searched in parallel
+            val memo = TraversalMemo()
+            rootMethods.withIndex().toList().parallelStream().map { (i, rootMethod) ->
+                val methodConfig = config.forMethod(rootMethod)
+                val diagramText = methodConfig.createDiagram(cache, memo, rootMethod).attacheMetaData(methodConfig)
+
+                "${i}_${inReadAction { rootMethod.name }}_calls" to diagramText
+            }.collect(Collectors.toList())
         }
     }
-}
 
+    private fun CallConfiguration.createDiagram(cache: GraphCache, memo: TraversalMemo, rootMethod: PsiMethod): String {
+        val root = inReadAction { cache.methodFor(rootMethod)!! }
+
+        val edges = cache.searchReachable(traversalFilter(root)) {
+            roots = root.toSingleList()
+            forwardDepth = graphTraversal.forwardDepth
+            backwardDepth = graphTraversal.backwardDepth
+            edgeMode = details.edgeMode
+            this.memo = memo
+        }.edges.toList()
+
+        val dot = DotDiagramBuilder()
+        val visualizationConfig = inReadAction { visualizationConfig(cache) }
+        dot.direction = DiagramDirection.LeftToRight
+
+        when (details.aggregation) {
+            Aggregation.ByClass -> dot.aggregateByClass(edges, visualizationConfig)
+            Aggregation.GroupByClass -> dot.groupByClass(edges, visualizationConfig)
+            Aggregation.None -> dot.noAggregation(edges, visualizationConfig)
+        }
 
+        return dot.create()
+    }
+}
 
-private fun CallConfiguration.perPublicMethod(creator: (PsiMethod) -> String): List<Pair<String, String>> {
-    val requestedMethod = rootMethod
 
-    val diagramsPerMethod =
-        inReadAction {
-            rootClass.methods
-                .filter { requestedMethod == null || requestedMethod == it }
-                .filter { requestedMethod != null || !it.isPrivate() }
-        }.mapIndexed { i, rootMethod ->
-                this.rootMethod = rootMethod
-                val plainDiagram = creator(rootMethod)
-                val diagramText = plainDiagram.attacheMetaData(this)
 
-                "${i}_${inReadAction { rootMethod.name }}_calls" to diagramText
-            }
+private fun CallConfiguration.publicRootMethods(): List<PsiMethod> {
+    val requestedMethod = rootMethod
 
-    if (diagramsPerMethod.isEmpty()) {
-        notifyErrorMissingPublicMethod(inReadAction { rootClass.project }, rootClass, rootMethod)
+    return inReadAction {
+        rootClass.methods
+            .filter { requestedMethod == null || requestedMethod == it }
+            .filter { requestedMethod != null || !it.isPrivate() }
     }
-
-    return diagramsPerMethod
 }
 
 
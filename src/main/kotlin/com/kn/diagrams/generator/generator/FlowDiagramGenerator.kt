@@ -14,48 +14,49 @@ class FlowDiagramGenerator {
     fun createUmlContent(config: FlowConfiguration): List<Pair<String, String>> {
         val project = inReadAction { config.rootClass.project }
         val restrictionFilter = inReadAction { config.restrictionFilter() }
-        val cache = GraphCache(project, restrictionFilter, config.projectClassification.searchMode)
         val diagram = DotDiagramBuilder()
 
-        return config.perTerminalTaggedMethod { root ->
-            val rootMethod = inReadAction { cache.methodFor(root)!! }
-            val chains = cache.search(config.traversalFilter(rootMethod)) {
-                roots = rootMethod.toSingleList()
-                forwardDepth = config.graphTraversal.forwardDepth
-                backwardDepth = config.graphTraversal.backwardDepth
-                edgeMode = EdgeMode.MethodsOnly
-            }
-            val elementChains = processCallHierarchyToFlowChains(chains)
-            val branches = createBranchesFromChains(elementChains)
+        return GraphCacheService.instance(project).withCache(config.rootClass, listOfNotNull(config.rootMethod), config.projectClassification, restrictionFilter, config.graphTraversal) { cache ->
+            config.perTerminalTaggedMethod { root ->
+                val rootMethod = inReadAction { cache.methodFor(root)!! }
+                val chains = cache.search(config.traversalFilter(rootMethod)) {
+                    roots = rootMethod.toSingleList()
+                    forwardDepth = config.graphTraversal.forwardDepth
+                    backwardDepth = config.graphTraversal.backwardDepth
+                    edgeMode = EdgeMode.MethodsOnly
+                }
+                val elementChains = processCallHierarchyToFlowChains(chains)
+                val branches = createBranchesFromChains(elementChains)
 
-            branches.forEach { (key, branch) ->
-                var lastElement: FlowElement = branch.first()
+                branches.forEach { (key, branch) ->
+                    var lastElement: FlowElement = branch.first()
 
-                checkForGapsInConditionOrder(branch, diagram)
+                    checkForGapsInConditionOrder(branch, diagram)
 
-                key.conditionBranch()?.let { (condition, conditionBranch) ->
-                    // connect the first branch element to the parent element
-                    diagram.addLink(condition, lastElement.name) {
-                        label = conditionBranch
+                    key.conditionBranch()?.let { (condition, conditionBranch) ->
+                        // connect the first branch element to the parent element
+                        diagram.addLink(condition, lastElement.name) {
+                            label = conditionBranch
+                        }
                     }
-                }
 
-                branch.forEach { flowElement ->
-                    diagram.addNode(flowElement)
+                    branch.forEach { flowElement ->
+                        diagram.addNode(flowElement)
 
-                    if (isFirstElementAfterConditionBranches(lastElement, flowElement)) {
-                        branches.lastActions(lastElement.relatedCondition)
-                                .forEach { diagram.addLink(it, flowElement.name) }
-                    } else if (lastElement.name != flowElement.name) {
-                        diagram.addLink(lastElement.name, flowElement.name)
+                        if (isFirstElementAfterConditionBranches(lastElement, flowElement)) {
+                            branches.lastActions(lastElement.relatedCondition)
+                                    .forEach { diagram.addLink(it, flowElement.name) }
+                        } else if (lastElement.name != flowElement.name) {
+                            diagram.addLink(lastElement.name, flowElement.name)
+                        }
+
+                        lastElement = flowElement
                     }
 
-                    lastElement = flowElement
                 }
 
+                diagram.create()
             }
-
-            diagram.create()
         }
     }
 
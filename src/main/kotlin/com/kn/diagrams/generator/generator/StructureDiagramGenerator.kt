@@ -6,6 +6,7 @@ import com.kn.diagrams.generator.config.StructureConfiguration
 import com.kn.diagrams.generator.config.attacheMetaData
 import com.kn.diagrams.generator.graph.EdgeMode
 import com.kn.diagrams.generator.graph.GraphCache
+import com.kn.diagrams.generator.graph.GraphCacheService
 import com.kn.diagrams.generator.graph.reference
 import com.kn.diagrams.generator.inReadAction
 import com.kn.diagrams.generator.toSingleList
@@ -16,28 +17,29 @@ class StructureDiagramGenerator {
     fun createUmlContent(config: StructureConfiguration): List<Pair<String, String>> {
         val project = inReadAction { config.rootClass.project }
         val restrictionFilter = inReadAction { config.restrictionFilter() }
-        val cache = GraphCache(project, restrictionFilter, config.projectClassification.searchMode)
 
-        val root = inReadAction { cache.classFor(config.rootClass)!! }
+        return GraphCacheService.instance(project).withCache(config.rootClass, emptyList(), config.projectClassification, restrictionFilter, config.graphTraversal) { cache ->
+            val root = inReadAction { cache.classFor(config.rootClass)!! }
 
-        val edges = cache.search(config.traversalFilter(root)) {
-            roots = root.toSingleList()
-            forwardDepth = config.graphTraversal.forwardDepth
-            backwardDepth = config.graphTraversal.backwardDepth
-            edgeMode = EdgeMode.TypesOnly
-        }.flatten()
+            val edges = cache.searchReachable(config.traversalFilter(root)) {
+                roots = root.toSingleList()
+                forwardDepth = config.graphTraversal.forwardDepth
+                backwardDepth = config.graphTraversal.backwardDepth
+                edgeMode = EdgeMode.TypesOnly
+            }.edges.toList()
 
-        val visualizationConfiguration = inReadAction { config.visualizationConfig(cache) }
-        val dot = DotDiagramBuilder()
-        dot.direction = DiagramDirection.TopToBottom
+            val visualizationConfiguration = inReadAction { config.visualizationConfig(cache) }
+            val dot = DotDiagramBuilder()
+            dot.direction = DiagramDirection.TopToBottom
 
-        when (config.details.aggregation) {
-            Aggregation.ByClass -> dot.aggregateByClass(edges, visualizationConfiguration)
-            Aggregation.GroupByClass -> dot.groupByClass(edges, visualizationConfiguration)
-            Aggregation.None -> dot.noAggregation(edges, visualizationConfiguration)
-        }
+            when (config.details.aggregation) {
+                Aggregation.ByClass -> dot.aggregateByClass(edges, visualizationConfiguration)
+                Aggregation.GroupByClass -> dot.groupByClass(edges, visualizationConfiguration)
+                Aggregation.None -> dot.noAggregation(edges, visualizationConfiguration)
+            }
 
-        return listOf("structure" to dot.create().attacheMetaData(config))
+            listOf("structure" to dot.create().attacheMetaData(config))
+        }
     }
 }
 
@@ -0,0 +1,444 @@
+package com.kn.diagrams.generator.graph
+
+import com.google.common.base.Stopwatch
+import com.intellij.openapi.application.ReadAction
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.progress.ProgressManager
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.vfs.VfsUtilCore
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.psi.JavaPsiFacade
+import com.intellij.psi.PsiClass
+import com.intellij.psi.PsiElement
+import com.intellij.psi.PsiManager
+import com.intellij.psi.PsiMethod
+import com.intellij.psi.search.GlobalSearchScope
+import com.intellij.psi.search.PackageScope
+import com.intellij.psi.search.PsiShortNamesCache
+import com.intellij.psi.search.searches.ClassInheritorsSearch
+import com.intellij.psi.search.searches.MethodReferencesSearch
+import com.intellij.psi.search.searches.ReferencesSearch
+import com.intellij.psi.util.PsiTreeUtil
+import com.intellij.util.concurrency.AppExecutorUtil
+import com.kn.diagrams.generator.findClasses
+import com.kn.diagrams.generator.inReadAction
+import com.kn.diagrams.generator.nonBlockingRead
+import java.lang.RuntimeException
+import java.nio.file.Path
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+
+/**
+ * all analyzed classes of a search scope without any restriction - restrictions are applied by the GraphCache views.
+ * On demand indices start empty and only analyze the classes around the requested roots.
+ */
+class ClassIndex(private val project: Project,
+                 private val searchMode: SearchMode,
+                 private val includedProjects: String,
+                 snapshot: GraphSnapshot? = null,
+                 private val onDemand: Boolean = false,
+                 private val backwardLookup: BackwardLookup = BackwardLookup.ClassReferences
+) {
+
+    private val LOG = Logger.getInstance("#org.plantuml.idea.com.kn.diagramgeneration.graph.ClassIndex")
+
+    // sorted to produce the same diagrams independent of the analysis order
+    val classes: MutableMap<String, AnalyzeClass> = TreeMap()
+    private val additionalClasses: MutableSet<String> = mutableSetOf() // outside of the included projects, e.g. root classes
+    private val fileStamps: MutableMap<String, FileStamp> = mutableMapOf()
+    // relations between the classes, patched with every added or removed class
+    private val classIdsByPath: TreeMap<String, MutableSet<String>> = TreeMap()
+    private val subTypeIds: MutableMap<String, MutableSet<String>> = mutableMapOf()
+    private val callingClassIds: MutableMap<String, MutableSet<String>> = mutableMapOf() // also the sub types producing inheritance calls
+    private val includedPaths = includedProjects.bySemicolon()
+    // rebuilt for new directories and changed source roots, because new packages may match the included projects
+    @Volatile
+    private var scope = inReadAction { narrowedScope() }
+    val symbols = SymbolTable()
+
+    // classes are restored lazily, so the snapshot is kept as long as the index lives
+    private val lazySnapshot = snapshot.takeIf { onDemand }
+    // remaining hops a class was already expanded with per restriction - a class is only expanded again to reach further
+    private val expandedForward: MutableMap<String, MutableMap<String, Int>> = mutableMapOf()
+    private val expandedBackward: MutableMap<String, MutableMap<String, Int>> = mutableMapOf()
+    // qualified names of the calling classes per called method id
+    private val callersByMethod: MutableMap<String, List<String>> = ConcurrentHashMap()
+
+    @Volatile
+    var modified = false // analyzed classes which are not part of the snapshot yet
+        private set
+
+    init {
+        if (!onDemand) {
+            addClassesToCache(snapshot)
+        }
+
+        ProgressManager.getGlobalProgressIndicator()?.fraction = 0.98
+    }
+
+    private fun addClassesToCache(snapshot: GraphSnapshot?) {
+        LOG.info("class collecting started")
+        val stop = Stopwatch.createStarted()
+        ProgressManager.getGlobalProgressIndicator()?.text = "Classes are collected and cached"
+
+        // only the names are listed up front - the classes of a name are found by the same read action which analyzes them,
+        // so collecting and analyzing overlap and the read lock is only held for small batches
+        val classNames = classNames()
+        val analyzedClasses = analyzeInBatches(classNames.chunked(batchSize), snapshot) { names -> includedClassesOf(names) }
+
+        analyzedClasses.forEach { (clazz, stamp) -> add(clazz, stamp) }
+
+        // restored callers of classes changed or deleted while the IDE was closed call outdated target methods
+        val restoredClassIds = analyzedClasses.filter { it.restored }.map { it.clazz.id() }.toSet()
+        val changedClassIds = analyzedClasses.filterNot { it.restored }.map { it.clazz.id() } +
+                snapshot?.classIds().orEmpty().filterNot { classes.containsKey(it) }
+        val reanalyzedClasses = reanalyzeCallers(changedClassIds.toSet()) { it in restoredClassIds }
+
+        // assigned in the sorted order to get the same symbols independent of the analysis order
+        classes.values.forEach { symbols.register(it) }
+
+        LOG.info("${classNames.size} class names collected and mapped to Ds, ${reanalyzedClasses.size} restored callers re-analyzed: ${stop.elapsed(TimeUnit.MILLISECONDS)}")
+    }
+
+    private fun classNames(): List<String> = inReadAction {
+        val names = mutableSetOf<String>()
+        PsiShortNamesCache.getInstance(project).processAllClassNames({ name -> names.add(name); true }, searchScope(), null)
+        names.sorted()
+    }
+
+    private fun includedClassesOf(names: List<String>): List<PsiClass> {
+        val scope = searchScope()
+
+        return names.flatMap { name -> PsiShortNamesCache.getInstance(project).getClassesByName(name, scope).asList() }
+                .filter { it.reference().isIncluded() }
+    }
+
+    private fun analyzeInBatches(psiClasses: List<PsiClass>, snapshot: GraphSnapshot?) =
+            analyzeInBatches(psiClasses.chunked(batchSize), snapshot) { it }
+
+    /**
+     * every batch is collected and analyzed in one read action; a write action cancels the running batches and
+     * they are restarted afterwards. The batches only fill their own results, the shared maps are written by the caller.
+     */
+    private fun <T> analyzeInBatches(batches: List<T>, snapshot: GraphSnapshot?, classesOf: (T) -> List<PsiClass>): List<AnalyzedClass> {
+        val indicator = ProgressManager.getGlobalProgressIndicator()
+
+        val jobs = batches.map { batch ->
+            ReadAction.nonBlocking<List<AnalyzedClass>> {
+                classesOf(batch).filter { it.isValid }.map { psiClass ->
+                    ProgressManager.checkCanceled()
+
+                    val stamp = psiClass.fileStamp()
+                    val restoredClass = stamp?.let { snapshot?.restore(psiClass.reference().id(), it, project) }
+
+                    restoredClass?.let { AnalyzedClass(it, stamp, true) } ?: AnalyzedClass(analyze(psiClass), stamp, false)
+                }
+            }.let { action -> indicator?.let { action.wrapProgress(it) } ?: action }
+                    .submit(analysisExecutor)
+        }
+
+        return jobs.flatMap { job ->
+            if (indicator?.isCanceled == true) {
+                jobs.forEach { it.cancel() }
+                throw RuntimeException("aborted")
+            }
+
+            job.blockingGet(2, TimeUnit.MINUTES).orEmpty()
+        }
+    }
+
+    /**
+     * @return ids of the added classes
+     */
+    fun include(psiClass: PsiClass): Set<String> {
+        val id = inReadAction { psiClass.reference().id() }
+        if (classes.containsKey(id)) return emptySet()
+
+        additionalClasses.add(id)
+        // the read action may be restarted, so the class is only added after it returned
+        val (clazz, stamp) = nonBlockingRead { analyze(psiClass) to psiClass.fileStamp() } ?: return emptySet()
+        add(clazz, stamp)
+        symbols.register(clazz)
+
+        return setOf(id)
+    }
+
+    /**
+     * analyzes the classes around the root - forward along the used types and the implementations,
+     * backward along the super types and the referencing classes found by the reference search
+     *
+     * @return ids of the added classes
+     */
+    fun expand(root: PsiClass, forwardHops: Int, backwardHops: Int, restriction: RestrictionFilter): Set<String> {
+        if (!onDemand) return emptySet()
+        val stop = Stopwatch.createStarted()
+
+        val added = expand(root, forwardHops, Direction.Forward, restriction) + expand(root, backwardHops, Direction.Backward, restriction)
+        added.sorted().forEach { id -> classes[id]?.let { symbols.register(it) } }
+
+        LOG.info("expansion by ${added.size} classes: ${stop.elapsed(TimeUnit.MILLISECONDS)}")
+
+        return added
+    }
+
+    private fun expand(root: PsiClass, hops: Int, direction: Direction, restriction: RestrictionFilter): Set<String> {
+        // classes rejected by one restriction may be accepted by another one, so the expansion is tracked per restriction
+        val expanded = (if (direction == Direction.Forward) expandedForward else expandedBackward)
+                .getOrPut(restriction.fingerprint()) { mutableMapOf() }
+        val added = mutableSetOf<String>()
+        val visited = mutableSetOf(inReadAction { root.reference().id() })
+
+        var level = listOf(root)
+        var remainingHops = hops
+        while (level.isNotEmpty()) {
+            val ids = inReadAction { level.map { it.reference().id() } }
+            val newClasses = analyzeInBatches(level.filterIndexed { i, _ -> !classes.containsKey(ids[i]) }, lazySnapshot)
+            newClasses.forEach { (clazz, stamp) ->
+                add(clazz, stamp)
+                added.add(clazz.id())
+            }
+
+            if (remainingHops == 0) break
+
+            val unexpanded = level.filterIndexed { i, _ -> (expanded[ids[i]] ?: -1) < remainingHops }
+            ids.forEach { id -> expanded[id] = maxOf(expanded[id] ?: -1, remainingHops) }
+
+            // the read action may be restarted, so it must not change any state
+            level = nonBlockingRead { unexpanded.flatMap { it.dependencies(direction) }.map { it to it.reference() } }
+                    .orEmpty()
+                    .filter { (_, reference) -> restriction.acceptClass(reference) && reference.isIncluded() && visited.add(reference.id()) }
+                    .map { (psiClass, _) -> psiClass }
+            remainingHops--
+        }
+
+        return added
+    }
+
+    private fun PsiClass.dependencies(direction: Direction): List<PsiClass> {
+        val scope = searchScope()
+        val analyzed = classes[reference().id()] ?: return emptyList()
+
+        return when (direction) {
+            Direction.Forward -> analyzed.usedClasses().mapNotNull { it.resolve(scope) } +
+                    ClassInheritorsSearch.search(this, scope, false).findAll()
+            Direction.Backward -> analyzed.superTypes.mapNotNull { it.resolve(scope) } + when (backwardLookup) {
+                BackwardLookup.ClassReferences -> ReferencesSearch.search(this, scope).findAll().mapNotNull { it.element.namedClass() }
+                BackwardLookup.MethodReferences -> methods.flatMap { it.callers(scope) }.distinct()
+            }
+        }
+    }
+
+    private fun PsiMethod.callers(scope: GlobalSearchScope): List<PsiClass> {
+        val callers = callersByMethod[id()] ?: MethodReferencesSearch.search(this, scope, true).findAll()
+                .mapNotNull { it.element.namedClass()?.qualifiedName }
+                .distinct()
+                .also { callersByMethod[id()] = it }
+
+        return callers.mapNotNull { JavaPsiFacade.getInstance(project).findClass(it, scope) }
+    }
+
+    private fun AnalyzeClass.usedClasses() = (superTypes
+            + fields.flatMap { it.types }
+            + calls.values.flatten().map { it.target.classReference }
+            + methods.values.flatMap { method -> method.returnTypes + method.parameter.flatMap { it.types } }).distinct()
+
+    private fun ClassReference.resolve(scope: GlobalSearchScope) = JavaPsiFacade.getInstance(project).findClass(qualifiedName(), scope)
+
+    // references inside anonymous or local classes belong to the surrounding class
+    private fun PsiElement.namedClass(): PsiClass? = generateSequence(PsiTreeUtil.getParentOfType(this, PsiClass::class.java)) {
+        PsiTreeUtil.getParentOfType(it, PsiClass::class.java)
+    }.firstOrNull { it.qualifiedName != null }
+
+    /**
+     * re-analyzes the classes of changed files and the classes calling into them - calls store the resolved
+     * target method, so they are outdated when the called class changes
+     *
+     * @return ids of all removed, changed, added and re-analyzed classes
+     */
+    fun update(changedPaths: Set<String>, changedFiles: Set<VirtualFile>): Set<String> {
+        val stop = Stopwatch.createStarted()
+
+        // new or moved directories may be new packages of the included projects
+        if (inReadAction { changedFiles.any { it.isValid && it.isDirectory } }) refreshScope()
+
+        val outdatedClasses = changedPaths.flatMap { classesAt(it) }.distinct()
+        val newClasses = analyzeInBatches(findClasses(changedFiles), null)
+        // changes outside of the analyzed classes keep the expansion memos
+        if (outdatedClasses.isEmpty() && newClasses.isEmpty()) return emptySet()
+
+        outdatedClasses.forEach { remove(it) }
+        newClasses.forEach { (clazz, stamp) -> add(clazz, stamp) }
+
+        val changedClassIds = (outdatedClasses.map { it.id() } + newClasses.map { it.clazz.id() }).toSet()
+        val reanalyzedClasses = reanalyzeCallers(changedClassIds) { true }
+
+        (newClasses + reanalyzedClasses).map { it.clazz }.sortedBy { it.id() }.forEach { symbols.register(it) }
+
+        // references may have changed, so the next generation expands the classes again
+        expandedForward.clear()
+        expandedBackward.clear()
+        callersByMethod.clear()
+
+        LOG.info("update of ${outdatedClasses.size} outdated, ${newClasses.size} new and ${reanalyzedClasses.size} calling classes: ${stop.elapsed(TimeUnit.MILLISECONDS)}")
+
+        return changedClassIds + reanalyzedClasses.map { it.clazz.id() }
+    }
+
+    // calls store the resolved target method, so the callers of changed classes are analyzed again
+    private fun reanalyzeCallers(changedClassIds: Set<String>, isCandidate: (String) -> Boolean): List<AnalyzedClass> {
+        val callingClasses = changedClassIds.flatMap { callingClassIds[it].orEmpty() }.filter(isCandidate).toSet() - changedClassIds
+        val reanalyzedClasses = analyzeInBatches(inReadAction { callingClasses.mapNotNull { classes[it]?.reference?.resolve(searchScope()) } }, null)
+        reanalyzedClasses.forEach { (clazz, stamp) -> add(clazz, stamp) }
+
+        return reanalyzedClasses
+    }
+
+    // classes of the changed file or of all files below the changed directory
+    private fun classesAt(changedPath: String): List<AnalyzeClass> =
+            (classIdsByPath[changedPath].orEmpty() + classIdsByPath.subMap("$changedPath/", "${changedPath}0").values.flatten())
+                    .mapNotNull { classes[it] }
+
+    /**
+     * @return the classes and all of their direct and indirect sub types
+     */
+    fun withSubTypes(classIds: Set<String>): Set<String> {
+        val closure = classIds.toMutableSet()
+        val pending = ArrayDeque(classIds)
+        while (pending.isNotEmpty()) {
+            subTypeIds[pending.poll()]?.forEach { subType -> if (closure.add(subType)) pending.add(subType) }
+        }
+
+        return closure
+    }
+
+    private fun findClasses(changedFiles: Set<VirtualFile>): List<PsiClass> = inReadAction {
+        val scope = searchScope()
+        val psiManager = PsiManager.getInstance(project)
+        val files = mutableListOf<VirtualFile>()
+
+        changedFiles.filter { it.isValid }.forEach { changedFile ->
+            VfsUtilCore.iterateChildrenRecursively(changedFile, null) { file ->
+                if (!file.isDirectory && scope.contains(file)) files.add(file)
+                true
+            }
+        }
+
+        files.mapNotNull { psiManager.findFile(it) }
+                .flatMap { it.findClasses() }
+                .filter { it.qualifiedName != null }
+                .filter { psiClass -> psiClass.reference().let { it.isKnown() || additionalClasses.contains(it.id()) } }
+    }
+
+    /**
+     * source roots may add or remove packages of the included projects - the classes which are new in the scope are
+     * analyzed, on demand indices find them by the next expansion
+     *
+     * @return ids of the added classes
+     */
+    fun rootsChanged(): Set<String> {
+        refreshScope()
+        if (onDemand) return emptySet()
+
+        val newClasses = analyzeInBatches(classNames().chunked(batchSize), null) { names ->
+            includedClassesOf(names).filterNot { classes.containsKey(it.reference().id()) }
+        }
+        newClasses.forEach { (clazz, stamp) -> add(clazz, stamp) }
+        newClasses.map { it.clazz }.sortedBy { it.id() }.forEach { symbols.register(it) }
+
+        LOG.info("${newClasses.size} classes added by changed source roots")
+
+        return newClasses.map { it.clazz.id() }.toSet()
+    }
+
+    private fun refreshScope() {
+        scope = inReadAction { narrowedScope() }
+
+        // the expanded classes may reach classes of the new packages now
+        expandedForward.clear()
+        expandedBackward.clear()
+        callersByMethod.clear()
+    }
+
+    private fun searchScope() = scope
+
+    // the included projects are package prefixes, so classes outside of their packages are never listed or resolved
+    private fun narrowedScope(): GlobalSearchScope {
+        val fullScope = when (searchMode) {
+            SearchMode.AllProjects -> GlobalSearchScope.allScope(project)
+            else -> GlobalSearchScope.projectScope(project)
+        }
+
+        val facade = JavaPsiFacade.getInstance(project)
+        val packageScopes = includedPaths.flatMap { path ->
+            if (path.isEmpty()) return fullScope
+
+            // a prefix can end within a package name - "com.kn" includes "com.knx" as well, so all sibling packages
+            // starting with the last name are part of the scope
+            val parentPackage = facade.findPackage(path.substringBeforeLast(".", "")) ?: return fullScope
+            val namePrefix = path.substringAfterLast(".")
+
+            parentPackage.getSubPackages(fullScope)
+                    .filter { it.name?.startsWith(namePrefix) == true }
+                    .map { PackageScope.packageScope(it, true) }
+        }
+        if (packageScopes.isEmpty()) return GlobalSearchScope.EMPTY_SCOPE
+
+        return GlobalSearchScope.union(packageScopes.toTypedArray()).intersectWith(fullScope)
+    }
+
+    private fun ClassReference.isIncluded() = includedPaths.any { path.startsWith(it) }
+
+    // on demand indices only update the analyzed classes, new classes are found by the next expansion
+    private fun ClassReference.isKnown() = if (onDemand) classes.containsKey(id()) else isIncluded()
+
+    fun saveSnapshot(file: Path) {
+        val stop = Stopwatch.createStarted()
+        modified = false
+
+        GraphSnapshot.save(file, classes.values.toList(), fileStamps.toMap())
+
+        LOG.info("snapshot saved: ${stop.elapsed(TimeUnit.MILLISECONDS)}")
+    }
+
+    private fun analyze(psiClass: PsiClass): AnalyzeClass {
+        modified = true
+        return AnalyzeClass(psiClass)
+    }
+
+    private fun add(clazz: AnalyzeClass, stamp: FileStamp?) {
+        classes.put(clazz.id(), clazz)?.let { unlink(it) }
+        stamp?.let { fileStamps[clazz.id()] = it }
+
+        clazz.reference.absolutePath?.let { path -> classIdsByPath.getOrPut(path) { mutableSetOf() }.add(clazz.id()) }
+        clazz.superTypes.forEach { superType -> subTypeIds.getOrPut(superType.id()) { mutableSetOf() }.add(clazz.id()) }
+        clazz.calledClassIds().forEach { calledClass -> callingClassIds.getOrPut(calledClass) { mutableSetOf() }.add(clazz.id()) }
+    }
+
+    private fun remove(clazz: AnalyzeClass) {
+        classes.remove(clazz.id())
+        fileStamps.remove(clazz.id())
+        unlink(clazz)
+    }
+
+    private fun unlink(clazz: AnalyzeClass) {
+        clazz.reference.absolutePath?.let { path -> classIdsByPath[path]?.remove(clazz.id()) }
+        clazz.superTypes.forEach { superType -> subTypeIds[superType.id()]?.remove(clazz.id()) }
+        clazz.calledClassIds().forEach { calledClass -> callingClassIds[calledClass]?.remove(clazz.id()) }
+    }
+
+    private fun AnalyzeClass.calledClassIds() = calls.values.asSequence().flatten()
+            .flatMap { call -> sequenceOf(call.source.classReference.id(), call.target.classReference.id()) }
+            .filter { it != id() }
+            .toSet()
+
+    private data class AnalyzedClass(val clazz: AnalyzeClass, val stamp: FileStamp?, val restored: Boolean)
+
+    companion object {
+        private const val batchSize = 50
+
+        private val analysisExecutor = AppExecutorUtil.createBoundedApplicationPoolExecutor("Diagram Class Analysis",
+                Runtime.getRuntime().availableProcessors())
+    }
+
+}
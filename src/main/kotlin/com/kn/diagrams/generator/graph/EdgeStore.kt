@@ -0,0 +1,45 @@
+package com.kn.diagrams.generator.graph
+
+/**
+ * compressed sparse row storage for one kind of edges - the edges of a node are located between
+ * start(node) and end(node) in the targets and the parallel payloads
+ */
+class EdgeStore<P : Any> private constructor(private val offsets: IntArray, private val targets: IntArray, private val payloads: Array<Any?>) {
+
+    fun start(node: Int) = if (node in 0 until offsets.size - 1) offsets[node] else 0
+
+    fun end(node: Int) = if (node in 0 until offsets.size - 1) offsets[node + 1] else 0
+
+    fun degree(node: Int) = end(node) - start(node)
+
+    fun target(edge: Int) = targets[edge]
+
+    @Suppress("UNCHECKED_CAST")
+    fun payload(edge: Int) = payloads[edge] as P
+
+    companion object {
+        fun <P : Any> empty() = EdgeStore<P>(IntArray(1), IntArray(0), arrayOfNulls(0))
+
+        /**
+         * @param source node of an edge, must be lower than the node count - the edges of a node keep their order
+         */
+        fun <P : Any> of(nodeCount: Int, edges: List<P>, source: (P) -> Int, target: (P) -> Int): EdgeStore<P> {
+            val offsets = IntArray(nodeCount + 1)
+            edges.forEach { edge -> offsets[source(edge) + 1]++ }
+            for (node in 1..nodeCount) {
+                offsets[node] += offsets[node - 1]
+            }
+
+            val targets = IntArray(edges.size)
+            val payloads = arrayOfNulls<Any>(edges.size)
+            val nextEdge = offsets.copyOf(nodeCount)
+            edges.forEach { edge ->
+                val index = nextEdge[source(edge)]++
+                targets[index] = target(edge)
+                payloads[index] = edge
+            }
+
+            return EdgeStore(offsets, targets, payloads)
+        }
+    }
+}
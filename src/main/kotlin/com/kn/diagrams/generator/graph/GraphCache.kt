@@ -1,77 +1,85 @@
 package com.kn.diagrams.generator.graph
 
 import com.google.common.base.Stopwatch
-import com.google.common.collect.Streams
-import com.intellij.codeInsight.completion.AllClassesGetter
-import com.intellij.codeInsight.completion.PlainPrefixMatcher
-import com.intellij.openapi.application.ApplicationManager
 import com.intellij.openapi.diagnostic.Logger
 import com.intellij.openapi.progress.ProgressManager
-import com.intellij.openapi.project.Project
 import com.intellij.psi.PsiClass
 import com.intellij.psi.PsiMethod
-import com.intellij.psi.search.GlobalSearchScope
-import com.kn.diagrams.generator.inReadAction
-import com.kn.diagrams.generator.nonBlockingRead
-import java.lang.RuntimeException
-import java.util.*
-import java.util.concurrent.Executors
+import java.util.TreeMap
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.TimeUnit
-import java.util.concurrent.atomic.AtomicInteger
 import java.util.stream.Collectors
-import kotlin.collections.LinkedHashSet
 
 
-class GraphCache(project: Project, val filter: RestrictionFilter, searchMode: SearchMode) {
+/**
+ * restricted view on a ClassIndex with all relations needed for the graph search
+ */
+class GraphCache(val index: ClassIndex, val filter: RestrictionFilter) {
 
     private val LOG = Logger.getInstance("#org.plantuml.idea.com.kn.diagramgeneration.graph.GraphCache")
 
-    val classes: MutableMap<String, AnalyzeClass> = mutableMapOf()
-    val impenitenceInverted: MutableMap<String, List<ClassReference>> = mutableMapOf()
-    val forwardCalls: MutableMap<String, List<AnalyzeCall>> = mutableMapOf()
-    val backwardCalls: MutableMap<String, List<AnalyzeCall>> = mutableMapOf()
-    val forwardMethodClassUsage: MutableMap<String, Set<MethodClassUsage>> = mutableMapOf()
-    val forwardFieldClassUsage: MutableMap<ClassReference, MutableSet<FieldWithTargetType>> = mutableMapOf()
-    val backwardFieldClassUsage: MutableMap<ClassReference, MutableSet<FieldWithTargetType>> = mutableMapOf()
-
-    init {
-        val allClasses = findClasses(project, searchMode, filter::acceptClass)
-        addClassesToCache(allClasses)
-        optimize()
-
-        ProgressManager.getGlobalProgressIndicator()?.fraction = 0.98
+    // sorted, so the relations are built in the same order independent of the updates
+    val classes: MutableMap<String, AnalyzeClass> = TreeMap()
+    val methods: MutableMap<String, AnalyzeMethod> = mutableMapOf()
+    private val classesByMethod: MutableMap<String, AnalyzeClass> = mutableMapOf()
+    val symbols: SymbolTable = index.symbols
+
+    // compressed relations for the search, rebuilt from the classes after every change
+    var forwardCallEdges: EdgeStore<AnalyzeCall> = EdgeStore.empty()
+        private set
+    var backwardCallEdges: EdgeStore<AnalyzeCall> = EdgeStore.empty()
+        private set
+    var methodClassUsageEdges: EdgeStore<MethodClassUsage> = EdgeStore.empty()
+        private set
+    var forwardFieldEdges: EdgeStore<FieldWithTargetType> = EdgeStore.empty()
+        private set
+    var backwardFieldEdges: EdgeStore<FieldWithTargetType> = EdgeStore.empty()
+        private set
+    var subTypeEdges: EdgeStore<Pair<ClassReference, ClassReference>> = EdgeStore.empty() // super type to sub type
+        private set
+    private var methodNodes: Array<AnalyzeMethod?> = emptyArray()
+    private var classNodes: Array<AnalyzeClass?> = emptyArray()
+    private val neighbors: MutableMap<EdgeMode, Neighbors> = ConcurrentHashMap()
+    // based on all accepted classes of the index, so structurally removed classes still count for their sub types
+    private var inheritance = InheritanceClosure(emptyMap())
+
+    // roots cut by the restriction are pinned into the view, but only the searches starting at them can see them
+    private val pinnedClassIds: MutableSet<String> = mutableSetOf()
+    private val pinnedMethodIds: MutableSet<String> = mutableSetOf()
+    private val viewFilter = object : RestrictionFilter {
+        override fun acceptClass(clazz: ClassReference) = clazz.id() in pinnedClassIds || filter.acceptClass(clazz)
+
+        override fun removeClass(clazz: ClassReference, cache: GraphCache) = clazz.id() !in pinnedClassIds && filter.removeClass(clazz, cache)
+
+        override fun acceptMethod(method: AnalyzeMethod) = method.id in pinnedMethodIds || filter.acceptMethod(method)
+
+        override fun fingerprint() = filter.fingerprint()
     }
 
-    private fun addClassesToCache(allClasses: MutableList<PsiClass>) {
+    init {
         val stop = Stopwatch.createStarted()
 
-        val i = AtomicInteger(0)
-        val chunks = allClasses.chunked(10)
-        ProgressManager.getGlobalProgressIndicator()?.text = "Cache class details"
-
-        chunks.parallelStream().forEach { chunk ->
-            if(ProgressManager.getGlobalProgressIndicator()?.isCanceled == true) throw RuntimeException("aborted")
-
-            chunk.forEach { psiClass ->
-                nonBlockingRead {
-                    add(AnalyzeClass(psiClass, filter))
-                }
-            }
-
-        }
+        index.classes.values
+                .filter { viewFilter.acceptClass(it.reference) }
+                .forEach { add(AnalyzeClass(it, viewFilter)) }
 
         // relation to other classes is needed, so all classes must be loaded first
         removeStructurallyFilteredClasses()
+        optimize()
 
-        LOG.info("mapped to Ds: ${stop.elapsed(TimeUnit.MILLISECONDS)}")
+        LOG.info("restricted view: ${stop.elapsed(TimeUnit.MILLISECONDS)}")
     }
 
     private fun removeStructurallyFilteredClasses() {
+        inheritance = acceptedInheritance()
         classes.entries
-                .filter { (_, cls) -> filter.removeClass(cls.reference, this) }
-                .forEach { (key, _) -> classes.remove(key) }
+                .filter { (_, cls) -> viewFilter.removeClass(cls.reference, this) }
+                .forEach { (_, cls) -> remove(cls) }
     }
 
+    // pinned roots are left out, so they don't change the view of other diagrams
+    private fun acceptedInheritance() = InheritanceClosure(index.classes.filterValues { filter.acceptClass(it.reference) })
+
     fun classFor(psiClass: PsiClass?): AnalyzeClass? {
         if (psiClass == null) return null
         return classes[psiClass.reference().id()]
@@ -79,104 +87,143 @@ class GraphCache(project: Project, val filter: RestrictionFilter, searchMode: Se
 
     fun methodFor(psiMethod: PsiMethod?): AnalyzeMethod? {
         if (psiMethod == null) return null
-        return classes.values.asSequence().mapNotNull { it.methods[psiMethod.id()] }.firstOrNull()
+        return methods[psiMethod.id()]
     }
 
-    fun allInheritedClasses(root: ClassReference): List<AnalyzeClass> {
-        val inheritanceClasses = mutableSetOf<AnalyzeClass>()
-        val processing = Stack<ClassReference>()
-        processing.push(root)
+    fun classFor(method: AnalyzeMethod): AnalyzeClass? = classesByMethod[method.id]
+
+    fun allInheritedClasses(root: ClassReference): Set<AnalyzeClass> = inheritance.superClassesOf(root)
 
-        while (processing.isNotEmpty()) {
-            val current = processing.pop()
-            val analyzeClass = current.resolve() ?: continue
+    fun inheritedAnnotations(clazz: ClassReference): Set<AnalyzeAnnotation> = inheritance.annotationsOf(clazz)
 
-            if (analyzeClass.reference != root) {
-                inheritanceClasses.add(analyzeClass)
+    private fun add(clazz: AnalyzeClass) {
+        classes[clazz.id()] = clazz
+        clazz.methods.values.forEach { method ->
+            methods[method.id] = method
+            classesByMethod[method.id] = clazz
+        }
+    }
+
+    private fun remove(clazz: AnalyzeClass) {
+        classes.remove(clazz.id())
+        clazz.methods.keys.forEach { methodId ->
+            // a method id can only be replaced by a newer version of the same class
+            if (classesByMethod[methodId] === clazz) {
+                methods.remove(methodId)
+                classesByMethod.remove(methodId)
             }
-            processing.addAll(analyzeClass.superTypes)
         }
-        return inheritanceClasses.toList()
     }
 
-    private fun findClasses(project: Project, searchMode: SearchMode, selector: ClassReference.() -> Boolean): MutableList<PsiClass> {
-        LOG.info("class collecting started")
-        ProgressManager.getGlobalProgressIndicator()?.text = "Classes are collected"
+    private fun optimize() {
         val stop = Stopwatch.createStarted()
-        val classes = mutableListOf<PsiClass>()
+        ProgressManager.getGlobalProgressIndicator()?.text = "Datastructures getting optimized"
 
-        inReadAction {
-            val scope = when (searchMode) {
-                SearchMode.AllProjects -> GlobalSearchScope.allScope(project)
-                else -> GlobalSearchScope.projectScope(project)
-            }
+        compress()
 
-            AllClassesGetter.processJavaClasses(PlainPrefixMatcher(""), project, scope) { cls ->
-                if (selector(cls.reference())) {
-                    classes.add(cls)
-                }
+        LOG.info("optimization: ${stop.elapsed(TimeUnit.MILLISECONDS)}")
+    }
 
-                true
-            }
-        }
+    // the relations only exist as compressed arrays, so no boxed per node collections stay alive next to them
+    private fun compress() {
+        val classCount = symbols.classCount()
+        val methodCount = symbols.methodCount()
 
-        LOG.info("find classes: ${stop.elapsed(TimeUnit.MILLISECONDS)}")
+        methodNodes = arrayOfNulls(methodCount)
+        methods.values.forEach { methodNodes[symbols.symbolOf(it)] = it }
+        classNodes = arrayOfNulls(classCount)
+        classes.values.forEach { classNodes[symbols.symbolOf(it.reference)] = it }
 
-        return classes
+        val calls = classes.values.flatMap { it.calls.values.flatten() }
+                .filter { call -> call.source.resolve() != null && call.target.resolve() != null }
+        forwardCallEdges = EdgeStore.of(methodCount, calls, { symbols.methodSymbol(it.source.method) }) { symbols.methodSymbol(it.target.method) }
+        backwardCallEdges = EdgeStore.of(methodCount, calls, { symbols.methodSymbol(it.target.method) }) { symbols.methodSymbol(it.source.method) }
+
+        val methodClassUsages = classes.values.flatMap { it.methods.values }.flatMap { it.classUsages() }
+        methodClassUsageEdges = EdgeStore.of(methodCount, methodClassUsages, { symbols.symbolOf(it.method) }) { symbols.symbolOf(it.clazz.reference) }
+
+        val fieldUsages = classes.values.flatMap { it.fields }.flatMap { it.classUsages() }
+        forwardFieldEdges = EdgeStore.of(classCount, fieldUsages, { symbols.symbolOf(it.field.containingClass!!) }) { symbols.symbolOf(it.target.reference) }
+        backwardFieldEdges = EdgeStore.of(classCount, fieldUsages, { symbols.symbolOf(it.target.reference) }) { symbols.symbolOf(it.field.containingClass!!) }
+
+        val subTypes = classes.values.flatMap { sub -> sub.superTypes.filter { it.exists() }.map { it to sub.reference } }
+        subTypeEdges = EdgeStore.of(classCount, subTypes, { symbols.symbolOf(it.first) }) { symbols.symbolOf(it.second) }
+
+        neighbors.clear()
     }
 
-    private fun add(clazz: AnalyzeClass) {
-        classes[clazz.id()] = clazz
+    fun neighbors(edgeMode: EdgeMode) = neighbors.computeIfAbsent(edgeMode) {
+        Neighbors(this, edgeMode, methodNodes.size, classNodes.size)
     }
 
-    private fun optimize() {
-        val stop = Stopwatch.createStarted()
-        ProgressManager.getGlobalProgressIndicator()?.text = "Datastructures getting optimized"
+    fun methodNode(symbol: Int) = methodNodes.getOrNull(symbol)
 
+    fun classNode(symbol: Int) = classNodes.getOrNull(symbol)
 
-        val calls = classes.flatMap { it.value.calls.values.flatten() }
-                .filter { call -> call.source.resolve() != null && call.target.resolve() != null }
-        calls
-                .groupBy { call -> call.source.method }
-                .forEach { (sourceMethod, callsByMethod) ->
-                    forwardCalls[sourceMethod] = callsByMethod
-                }
-        calls
-                .groupBy { call -> call.target.method }
-                .forEach { (targetMethod, calls) -> backwardCalls[targetMethod] = calls }
-
-        classes.flatMap { sub -> sub.value.superTypes.filter { it.exists() }.map { sub.value.reference to it } }
-                .groupBy { (_, superClass) -> superClass.id() }
-                .mapValues { it.value.map { (subRef, _) -> subRef } }
-                .forEach { (superClass, subs) -> impenitenceInverted[superClass] = subs }
-
-        classes.values.flatMap { it.methods.values }
-                .map { method ->
-                    method to (method.returnTypes.filter { it.exists() && filter.acceptClass(it) }.map { MethodClassUsage(it.resolve()!!, method, "return") } union
-                            method.parameter.flatMap { param -> param.types.filter { it.exists() && filter.acceptClass(it) }.map { MethodClassUsage(it.resolve()!!, method, param.name) } })
-                }
-                .forEach { (method, usages) ->
-                    val nonSelfUsages = usages.filter { it.clazz.reference != method.containingClass }.toSet()
-
-                    if (nonSelfUsages.isNotEmpty()) {
-                        forwardMethodClassUsage[method.id] = nonSelfUsages
-                    }
-                }
-
-        classes.values.flatMap { it.fields }.forEach { field ->
-            field.types.asSequence()
-                    .filter { it.exists() && filter.acceptClass(it) }
-                    .filterNot { targetCls -> field.containingClass == targetCls }
-                    .forEach { targetCls ->
-                        field.containingClass?.let { cls ->
-                            val fieldEdge = FieldWithTargetType(field, targetCls.resolve()!!)
-                            forwardFieldClassUsage.computeIfAbsent(cls) { mutableSetOf() }.add(fieldEdge)
-                            backwardFieldClassUsage.computeIfAbsent(targetCls) { mutableSetOf() }.add(fieldEdge)
-                        }
-                    }
+    /**
+     * replaces the classes changed in the index instead of restricting the whole index again.
+     * The sub types are filtered again, because their removal depends on the inherited classes and annotations.
+     */
+    fun update(changedClassIds: Set<String>) {
+        val classIds = index.withSubTypes(changedClassIds)
+        classIds.mapNotNull { classes[it] }.forEach { remove(it) }
+
+        val newClasses = classIds.mapNotNull { index.classes[it] }
+                .filter { viewFilter.acceptClass(it.reference) }
+                .map { AnalyzeClass(it, viewFilter) }
+        newClasses.forEach { add(it) }
+
+        inheritance = acceptedInheritance()
+        newClasses.filter { viewFilter.removeClass(it.reference, this) }.forEach { remove(it) }
+
+        compress()
+    }
+
+    /**
+     * adds the roots of a diagram to the view even when the restriction cuts them, the restriction itself
+     * stays free of roots so all diagrams with the same restriction share one view
+     */
+    fun pin(rootClass: ClassReference, rootMethodIds: Set<String>) {
+        val indexedClass = index.classes[rootClass.id()] ?: return
+
+        val classPinned = (!filter.acceptClass(rootClass) || filter.removeClass(rootClass, this))
+                && pinnedClassIds.add(rootClass.id())
+        val methodsPinned = indexedClass.methods.values
+                .filter { it.id in rootMethodIds && !filter.acceptMethod(it) }
+                .count { pinnedMethodIds.add(it.id) } > 0
+
+        if (classPinned || methodsPinned) update(setOf(rootClass.id()))
+    }
+
+    // pinned roots of other diagrams
+    fun foreignRoots(roots: List<GraphNode>): ForeignRoots {
+        if (pinnedClassIds.isEmpty() && pinnedMethodIds.isEmpty()) return ForeignRoots.none
+
+        val rootClassIds = roots.mapNotNull { root ->
+            when (root) {
+                is AnalyzeClass -> root.id()
+                is AnalyzeMethod -> root.containingClass.id()
+                else -> null
+            }
         }
+        val rootMethodIds = roots.filterIsInstance<AnalyzeMethod>().map { it.id }
 
-        LOG.info("optimization: ${stop.elapsed(TimeUnit.MILLISECONDS)}")
+        return ForeignRoots(pinnedClassIds - rootClassIds, pinnedMethodIds - rootMethodIds)
+    }
+
+    private fun AnalyzeMethod.classUsages(): Set<MethodClassUsage> {
+        val usages = returnTypes.filter { it.exists() }.map { MethodClassUsage(it.resolve()!!, this, "return") } union
+                parameter.flatMap { param -> param.types.filter { it.exists() }.map { MethodClassUsage(it.resolve()!!, this, param.name) } }
+
+        return usages.filter { it.clazz.reference != containingClass }.toSet()
+    }
+
+    private fun AnalyzeField.classUsages(): List<FieldWithTargetType> {
+        val sourceClass = containingClass ?: return emptyList()
+
+        return types.distinct()
+                .filter { type -> type != sourceClass && type.exists() }
+                .map { type -> FieldWithTargetType(this, type.resolve()!!) }
     }
 
     fun search(filter: TraversalFilter, config: SearchContext.() -> Unit): Set<List<SquashedGraphEdge>> {
@@ -184,17 +231,16 @@ class GraphCache(project: Project, val filter: RestrictionFilter, searchMode: Se
         val stop = Stopwatch.createStarted()
         val context = SearchContext()
         config(context)
+        val foreignRoots = foreignRoots(context.roots)
 
-        val findings = context.roots.parallelStream().flatMap { root ->
-            val forwardChains = context.forwardDepth?.takeIf { it > 0 }?.let {
-                FindContext(this, Direction.Forward, filter, it, context.edgeMode).find(root)
-            } ?: emptyList()
-            val backwardChains = context.backwardDepth?.takeIf { it > 0 }?.let {
-                FindContext(this, Direction.Backward, filter, it, context.edgeMode).find(root)
-            } ?: emptyList()
-
-            Streams.concat(forwardChains.stream(), backwardChains.stream())
-        }.collect(Collectors.toCollection { LinkedHashSet<List<SquashedGraphEdge>>() })
+        // both directions of all roots are searched at once and share the materialized neighbors
+        val findings = context.roots
+                .flatMap { root -> context.depthByDirection().map { (direction, depth) -> Triple(root, direction, depth) } }
+                .parallelStream()
+                .map { (root, direction, depth) -> FindContext(this, direction, filter, depth, context.edgeMode, foreignRoots).find(root) }
+                .collect(Collectors.toList())
+                .flatten()
+                .toCollection(LinkedHashSet())
 
         LOG.info("search: ${stop.elapsed(TimeUnit.MILLISECONDS)}")
         ProgressManager.getGlobalProgressIndicator()?.text = "Diagram is generated"
@@ -202,11 +248,37 @@ class GraphCache(project: Project, val filter: RestrictionFilter, searchMode: Se
         return findings
     }
 
+    /**
+     * reachable subgraph for diagrams without the need of the single chains
+     */
+    fun searchReachable(filter: TraversalFilter, config: SearchContext.() -> Unit): ReachableGraph {
+        ProgressManager.getGlobalProgressIndicator()?.text = "Paths are searched and filtered"
+        val stop = Stopwatch.createStarted()
+        val context = SearchContext()
+        config(context)
+
+        val memo = context.memo ?: TraversalMemo()
+        val foreignRoots = foreignRoots(context.roots)
+        val subgraphs = context.roots
+                .flatMap { root -> context.depthByDirection().map { (direction, depth) -> Triple(root, direction, depth) } }
+                .parallelStream()
+                .map { (root, direction, depth) -> ReachableContext(this, direction, filter, depth, context.edgeMode, foreignRoots, memo).find(root) }
+                .collect(Collectors.toList())
+
+        val nodes = subgraphs.flatMapTo(LinkedHashSet()) { it.nodes }
+        val edges = subgraphs.flatMapTo(LinkedHashSet()) { it.edges }
+
+        LOG.info("reachable search: ${stop.elapsed(TimeUnit.MILLISECONDS)}")
+        ProgressManager.getGlobalProgressIndicator()?.text = "Diagram is generated"
+
+        return ReachableGraph(nodes, edges)
+    }
+
     private fun ClassReference.exists() = classes.containsKey(id())
 
     private fun MethodReference?.resolve(): AnalyzeMethod? {
         if (this == null) return null
-        return classes[classReference.id()]?.methods?.get(method)
+        return methods[method]
     }
 
     private fun ClassReference?.resolve(): AnalyzeClass? {
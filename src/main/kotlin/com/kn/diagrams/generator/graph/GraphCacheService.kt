@@ -0,0 +1,224 @@
+package com.kn.diagrams.generator.graph
+
+import com.intellij.ProjectTopics
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.application.PathManager
+import com.intellij.openapi.components.ServiceManager
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.roots.ModuleRootEvent
+import com.intellij.openapi.roots.ModuleRootListener
+import com.intellij.openapi.roots.ProjectFileIndex
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.openapi.vfs.VirtualFileManager
+import com.intellij.openapi.vfs.newvfs.BulkFileListener
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent
+import com.intellij.psi.PsiClass
+import com.intellij.psi.PsiFile
+import com.intellij.psi.PsiJavaFile
+import com.intellij.psi.PsiManager
+import com.intellij.psi.PsiMethod
+import com.intellij.psi.PsiTreeAnyChangeAbstractAdapter
+import com.kn.diagrams.generator.inReadAction
+import org.jetbrains.annotations.TestOnly
+import java.io.IOException
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+import kotlin.math.absoluteValue
+
+/**
+ * keeps the analyzed classes alive between diagram generations; changed files are re-analyzed on the next access
+ * and patched into every restricted view of the index. Indices are stored as snapshot in the system directory
+ * to survive IDE restarts.
+ */
+class GraphCacheService(private val project: Project) : Disposable {
+
+    private val LOG = Logger.getInstance("#org.plantuml.idea.com.kn.diagramgeneration.graph.GraphCacheService")
+
+    private val lock = ReentrantReadWriteLock()
+    private val indices = LinkedHashMap<String, ClassIndex>(maxIndices, 0.75f, true)
+    private val caches = object : LinkedHashMap<String, GraphCache>(maxCaches, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, GraphCache>) = size > maxCaches
+    }
+
+    private val changedPaths: MutableSet<String> = ConcurrentHashMap.newKeySet()
+    private val changedFiles: MutableSet<VirtualFile> = ConcurrentHashMap.newKeySet()
+    private val rootsChanged = AtomicBoolean()
+
+    init {
+        PsiManager.getInstance(project).addPsiTreeChangeListener(object : PsiTreeAnyChangeAbstractAdapter() {
+            override fun onChange(file: PsiFile?) {
+                // directory level changes are covered by the file system events
+                if (file !is PsiJavaFile) return
+
+                file.originalFile.virtualFile?.let { changed(it.path, it) }
+            }
+        }, this)
+
+        project.messageBus.connect(this).subscribe(VirtualFileManager.VFS_CHANGES, object : BulkFileListener {
+            override fun after(events: MutableList<out VFileEvent>) {
+                events.filter { it.isJavaSource() }.forEach { event ->
+                    changed(event.path, event.file)
+                    when (event) {
+                        is VFileMoveEvent -> changed(event.oldPath, null)
+                        is VFilePropertyChangeEvent -> changed(event.oldPath, null)
+                    }
+                }
+            }
+        })
+
+        project.messageBus.connect(this).subscribe(ProjectTopics.PROJECT_ROOTS, object : ModuleRootListener {
+            override fun rootsChanged(event: ModuleRootEvent) {
+                rootsChanged.set(true)
+            }
+        })
+    }
+
+    fun <T> withCache(rootClass: PsiClass, rootMethods: List<PsiMethod>, classification: ProjectClassification, filter: RestrictionFilter,
+                      traversal: GraphTraversal, action: (GraphCache) -> T): T {
+        val rootReference = inReadAction { rootClass.reference() }
+        val rootMethodIds = inReadAction { rootMethods.map { it.id() }.toSet() }
+        val indexKey = classification.searchMode.name + "|" + classification.analysisMode() + "|" + classification.includedProjects
+        val cacheKey = indexKey + "|" + filter.fingerprint()
+
+        val cache = lock.write {
+            applyChanges()
+
+            val index = index(indexKey, classification)
+            // hidden classes like interfaces are passed without counting for the search depth, so the analysis reaches further
+            val hopsPerDepth = classification.onDemandHopsPerDepth
+            propagate(index, index.include(rootClass) +
+                    index.expand(rootClass, traversal.forwardDepth * hopsPerDepth, traversal.backwardDepth * hopsPerDepth, filter))
+
+            // restrictions only produce a new view, the index is reused
+            caches.getOrPut(cacheKey) { GraphCache(index, filter) }.apply { pin(rootReference, rootMethodIds) }
+        }
+
+        // searches only read the cache, so parallel generations are fine as long as no update happens meanwhile
+        return lock.read { action(cache) }
+    }
+
+    private fun index(key: String, classification: ProjectClassification): ClassIndex {
+        return indices[key] ?: ClassIndex(project, classification.searchMode, classification.includedProjects, GraphSnapshot.load(snapshotFile(key)),
+                classification.analysisMode == AnalysisMode.OnDemand, classification.backwardLookup).also { index ->
+            if (indices.size >= maxIndices) {
+                val eldestKey = indices.keys.first()
+                val eldest = indices.remove(eldestKey)
+                caches.values.removeIf { it.index === eldest }
+                eldest?.let { saveSnapshot(eldestKey, it) }
+            }
+            indices[key] = index
+
+            if (index.modified) {
+                // evicted indices are saved on their eviction; a lookup by key would reorder the access ordered map under the read lock
+                ApplicationManager.getApplication().executeOnPooledThread { lock.read { if (indices.values.any { it === index }) saveSnapshot(key, index) } }
+            }
+        }
+    }
+
+    private fun ProjectClassification.analysisMode() = when (analysisMode) {
+        AnalysisMode.AllClasses -> analysisMode.name
+        AnalysisMode.OnDemand -> analysisMode.name + "/" + backwardLookup.name
+    }
+
+    private fun snapshotFile(indexKey: String): Path = Paths.get(PathManager.getSystemPath(), "plantuml-generator",
+            project.locationHash, "${indexKey.hashCode().absoluteValue}")
+
+    private fun saveSnapshot(indexKey: String, index: ClassIndex) = saveSnapshot(snapshotFile(indexKey), index)
+
+    private fun saveSnapshot(file: Path, index: ClassIndex) {
+        if (!index.modified) return
+
+        try {
+            index.saveSnapshot(file)
+        } catch (e: IOException) {
+            LOG.warn("snapshot could not be saved", e)
+        }
+    }
+
+    private fun propagate(index: ClassIndex, changedClassIds: Set<String>) {
+        if (changedClassIds.isEmpty()) return
+
+        caches.values.filter { it.index === index }.forEach { it.update(changedClassIds) }
+    }
+
+    // only java classes are analyzed, the diagrams written by the plugin and other files must not cause an update
+    private fun VFileEvent.isJavaSource() = file?.isSourceDirectory() == true || path.isJavaFile()
+            || (this is VFilePropertyChangeEvent && oldPath.isJavaFile())
+
+    // deleted directories are not part of the sources anymore, but their classes have to be removed
+    private fun VirtualFile.isSourceDirectory() = isDirectory && (!isValid || ProjectFileIndex.getInstance(project).isInSourceContent(this))
+
+    private fun String.isJavaFile() = endsWith(".java", ignoreCase = true)
+
+    private fun changed(path: String, file: VirtualFile?) {
+        changedPaths.add(path)
+        file?.let { changedFiles.add(it) }
+    }
+
+    private fun applyChanges() {
+        if (rootsChanged.getAndSet(false)) {
+            indices.values.forEach { index -> propagate(index, index.rootsChanged()) }
+        }
+        if (changedPaths.isEmpty()) return
+
+        val paths = changedPaths.toSet()
+        val files = changedFiles.toSet()
+        changedPaths.removeAll(paths)
+        changedFiles.removeAll(files)
+
+        LOG.info("${paths.size} changed files are applied to ${indices.size} indices")
+        indices.values.forEach { index -> propagate(index, index.update(paths, files)) }
+    }
+
+    // drops the snapshots as well, so the next generation analyzes everything again
+    @TestOnly
+    fun clear() {
+        lock.write {
+            indices.keys.forEach { GraphSnapshot.delete(snapshotFile(it)) }
+            caches.clear()
+            indices.clear()
+        }
+    }
+
+    override fun dispose() {
+        // a generation holding the read lock may wait for a read action while the closing project holds the write action
+        if (!lock.writeLock().tryLock(disposeTimeoutSeconds, TimeUnit.SECONDS)) {
+            LOG.warn("snapshots are not saved, a diagram generation is still running")
+            return
+        }
+
+        val modifiedIndices = try {
+            indices.filterValues { it.modified }.mapKeys { (key, _) -> snapshotFile(key) }.also {
+                caches.clear()
+                indices.clear()
+            }
+        } finally {
+            lock.writeLock().unlock()
+        }
+
+        // the indices are detached, so they are saved outside of the lock and off the dispatch thread
+        if (modifiedIndices.isNotEmpty()) {
+            ApplicationManager.getApplication().executeOnPooledThread {
+                modifiedIndices.forEach { (file, index) -> saveSnapshot(file, index) }
+            }
+        }
+    }
+
+    companion object {
+        private const val maxIndices = 2
+        private const val maxCaches = 5
+        private const val disposeTimeoutSeconds = 2L
+
+        fun instance(project: Project): GraphCacheService = ServiceManager.getService(project, GraphCacheService::class.java)
+    }
+}
@@ -2,6 +2,7 @@ package com.kn.diagrams.generator.graph
 
 import com.kn.diagrams.generator.config.CommentWithEnumValues
 import com.kn.diagrams.generator.config.CommentWithValue
+import java.util.concurrent.ConcurrentHashMap
 
 class GraphTraversal(
         var forwardDepth: Int = 3,
@@ -49,9 +50,25 @@ enum class SearchMode {
     OpenProject, AllProjects
 }
 
+enum class AnalysisMode {
+    AllClasses, // every class of the search scope is analyzed once and shared by all diagrams
+    OnDemand // only the classes around the root are analyzed, dependent classes are found by the reference search
+}
+
+enum class BackwardLookup {
+    ClassReferences, // all classes referencing a class, needed for backward type usages
+    MethodReferences // only the callers of the methods - less classes for call and flow diagrams, only used on demand
+}
+
 class ProjectClassification(
         @CommentWithEnumValues
         var searchMode: SearchMode = SearchMode.OpenProject,
+        @CommentWithEnumValues
+        var analysisMode: AnalysisMode = AnalysisMode.AllClasses,
+        @CommentWithEnumValues
+        var backwardLookup: BackwardLookup = BackwardLookup.ClassReferences,
+        @CommentWithValue("on demand only: analyzed classes per search depth, hidden classes like interfaces don't count for the depth")
+        var onDemandHopsPerDepth: Int = 2,
         var includedProjects: String = "",
         var pathEndKeywords: String = "*.impl",
         var isClientPath: String = "",
@@ -71,40 +88,85 @@ class ProjectClassification(
 
 ) {
 
-    fun ClassReference.isEntryPoint() = isEntryPointName.regexBySemicolon().any { it.matches(name) }
-            || isEntryPointPath.regexBySemicolon().any { it.matches(path) }
+    // the settings must not change after the first class was classified - configurations are created per generation
+    @Transient
+    private var classification: ClassClassification? = null
+
+    fun ClassReference.isEntryPoint() = has(ClassCategory.EntryPoint)
+
+    fun ClassReference.isDataStructure() = has(ClassCategory.DataStructure)
+
+    fun ClassReference.isDataAccess() = has(ClassCategory.DataAccess)
+
+    fun ClassReference.isMapping() = has(ClassCategory.Mapping)
+
+    fun ClassReference.isInterfaceStructure() = has(ClassCategory.InterfaceStructure)
+
+    fun ClassReference.isClient() = has(ClassCategory.Client)
+
+    fun ClassReference.isTest() = has(ClassCategory.Test)
+
+    private fun ClassReference.has(category: ClassCategory): Boolean {
+        val classification = classification ?: ClassClassification.of(this@ProjectClassification).also { classification = it }
+
+        return classification.categoriesOf(this) and category.bit != 0
+    }
+
+    fun settings() = listOf(isClientPath, isClientName, isTestPath, isTestName, isMappingPath, isMappingName,
+            isDataAccessPath, isDataAccessName, isDataStructurePath, isDataStructureName,
+            isInterfaceStructuresPath, isInterfaceStructuresName, isEntryPointPath, isEntryPointName)
+}
+
+enum class ClassCategory {
+    Client, Test, Mapping, DataAccess, DataStructure, InterfaceStructure, EntryPoint;
+
+    val bit = 1 shl ordinal
+}
+
+/**
+ * categories of the classes as bitset - every class is classified once per classification settings
+ */
+class ClassClassification private constructor(settings: List<String>) {
+    private val filters = settings.map { it.patterns() }
+    private val categories: MutableMap<ClassReference, Int> = ConcurrentHashMap()
+
+    fun categoriesOf(clazz: ClassReference): Int = categories[clazz] ?: classify(clazz).also { categories[clazz] = it }
+
+    private fun classify(clazz: ClassReference): Int {
+        var bits = 0
+        ClassCategory.values().forEach { category ->
+            val pathFilter = filters[2 * category.ordinal]
+            val nameFilter = filters[2 * category.ordinal + 1]
+            val isTestFile = category == ClassCategory.Test && clazz.absolutePath?.contains("/test/") == true
 
-    fun ClassReference.isDataStructure() = isDataStructureName.regexBySemicolon().any { it.matches(name) }
-            || isDataStructurePath.regexBySemicolon().any { it.matches(path) }
+            if (isTestFile || nameFilter.matches(clazz.name) || pathFilter.matches(clazz.path)) {
+                bits = bits or category.bit
+            }
+        }
 
-    fun ClassReference.isDataAccess() = isDataAccessName.regexBySemicolon().any { it.matches(name) }
-            || isDataAccessPath.regexBySemicolon().any { it.matches(path) }
+        return bits
+    }
 
-    fun ClassReference.isMapping() = isMappingName.regexBySemicolon().any { it.matches(name) }
-            || isMappingPath.regexBySemicolon().any { it.matches(path) }
+    companion object {
+        private const val maxClassifications = 20
 
-    fun ClassReference.isInterfaceStructure() = isInterfaceStructuresName.regexBySemicolon().any { it.matches(name) }
-            || isInterfaceStructuresPath.regexBySemicolon().any { it.matches(path) }
+        private val classifications: MutableMap<List<String>, ClassClassification> = ConcurrentHashMap()
 
-    fun ClassReference.isClient() = isClientName.regexBySemicolon().any { it.matches(name) }
-            || isClientPath.regexBySemicolon().any { it.matches(path) }
+        fun of(classification: ProjectClassification): ClassClassification {
+            if (classifications.size > maxClassifications) classifications.clear()
 
-    fun ClassReference.isTest() = absolutePath?.contains("/test/") == true
-            || isTestName.regexBySemicolon().any { it.matches(name) }
-            || isTestPath.regexBySemicolon().any { it.matches(path) }
+            return classifications.computeIfAbsent(classification.settings()) { ClassClassification(it) }
+        }
+    }
 }
 
-fun notEmptyAnd(plainFilter: String, filter: (List<Regex>) -> Boolean): Boolean {
-    return plainFilter != "" && filter(plainFilter.regexBySemicolon())
+fun notEmptyAnd(plainFilter: String, filter: (PatternFilter) -> Boolean): Boolean {
+    return plainFilter != "" && filter(plainFilter.patterns())
 }
 
-fun emptyOr(plainFilter: String, filter: (List<Regex>) -> Boolean): Boolean {
-    return plainFilter == "" || filter(plainFilter.regexBySemicolon())
+fun emptyOr(plainFilter: String, filter: (PatternFilter) -> Boolean): Boolean {
+    return plainFilter == "" || filter(plainFilter.patterns())
 }
 
 fun String.bySemicolon(): List<String> = split(";")
 
-fun String.regexBySemicolon(): List<Regex> = takeIf { it != "" }
-        ?.split(";")
-        ?.map { it.replace("*", ".*").toRegex(option = RegexOption.IGNORE_CASE) }
-        ?: emptyList()
@@ -2,6 +2,7 @@ package com.kn.diagrams.generator.graph
 
 import com.intellij.psi.PsiMethod
 import com.intellij.psi.PsiModifier
+import com.kn.diagrams.generator.config.serializer
 import com.kn.diagrams.generator.inCase
 import com.kn.diagrams.generator.inReadAction
 import com.kn.diagrams.generator.notReachable
@@ -9,30 +10,25 @@ import com.kn.diagrams.generator.notReachable
 
 interface TraversalFilter {
     fun accept(node: GraphNode): Boolean
+    fun fingerprint(): String // equal fingerprints accept the same nodes
 }
 
 interface RestrictionFilter {
     fun acceptClass(clazz: ClassReference): Boolean
     fun removeClass(clazz: ClassReference, cache: GraphCache): Boolean // postprocessing based on other classes
     fun acceptMethod(method: AnalyzeMethod): Boolean
+    fun fingerprint(): String // equal fingerprints allow to reuse the same cache
 }
 val ClassReference.isEnum get() = classType == ClassType.Enum
 
-class GraphRestrictionFilter(private val rootClass: ClassReference,
-                             private val rootMethodId: String?,
-                             private val global: ProjectClassification,
-                             private val restriction: GraphRestriction
-) : RestrictionFilter {
-    override fun acceptClass(clazz: ClassReference): Boolean {
-        if (clazz == rootClass) return true
+// free of roots, so all diagrams with the same restriction share one cache - the roots are pinned into it per diagram
+class GraphRestrictionFilter(private val global: ProjectClassification, private val restriction: GraphRestriction) : RestrictionFilter {
+    private val includedPaths = global.includedProjects.bySemicolon()
 
-        return clazz.accept()
-    }
-
-    private fun ClassReference.accept() =
+    override fun acceptClass(clazz: ClassReference) =
         with(global) {
             with(restriction) {
-                global.includedProjects.bySemicolon().any { path.startsWith(it) }
+                includedPaths.any { path.startsWith(it) }
                         && isIncludedAndNotExcluded(classNameExcludeFilter, classNameIncludeFilter) { name }
                         && isIncludedAndNotExcluded(classPackageExcludeFilter, classPackageIncludeFilter) { path }
                         && cutTests inCase isTest()
@@ -46,8 +42,6 @@ class GraphRestrictionFilter(private val rootClass: ClassReference,
         }
 
     override fun acceptMethod(method: AnalyzeMethod): Boolean {
-        if (rootMethodId == method.id) return true
-
         return with(method) {
             with(restriction) {
                 isIncludedAndNotExcluded(methodNameExcludeFilter, methodNameIncludeFilter) { name }
@@ -58,20 +52,16 @@ class GraphRestrictionFilter(private val rootClass: ClassReference,
         }
     }
 
-    override fun removeClass(clazz: ClassReference, cache: GraphCache): Boolean {
-        if (rootClass == clazz) return false
+    override fun fingerprint() = serializer.toJson(global) + "|" + serializer.toJson(restriction)
 
+    override fun removeClass(clazz: ClassReference, cache: GraphCache): Boolean {
         val inheritedClasses = cache.allInheritedClasses(clazz)
-        val inheritedIncludingSelf = (cache.classes[clazz.id()]?.annotations
-                ?: emptyList()) union inheritedClasses.flatMap { it.annotations }
 
-        val byAnnotation = notEmptyAnd(restriction.removeByAnnotation) { reqExs ->
-            reqExs.any { reqEx ->
-                inheritedIncludingSelf.any { anyAnnotation -> reqEx.matches(anyAnnotation.type.name) }
-            }
+        val byAnnotation = notEmptyAnd(restriction.removeByAnnotation) { patterns ->
+            cache.inheritedAnnotations(clazz).any { anyAnnotation -> patterns.matches(anyAnnotation.type.name) }
         }
-        val byInheritance = notEmptyAnd(restriction.removeByInheritance) { reqExs ->
-            reqExs.any { reqEx -> inheritedClasses.any { inherited -> reqEx.matches(inherited.reference.name) } }
+        val byInheritance = notEmptyAnd(restriction.removeByInheritance) { patterns ->
+            inheritedClasses.any { inherited -> patterns.matches(inherited.reference.name) }
         }
 
         val classExcluded = with(restriction) {
@@ -85,10 +75,25 @@ class GraphRestrictionFilter(private val rootClass: ClassReference,
 }
 
 class GraphTraversalFilter(private val rootNode: GraphNode, private val global: ProjectClassification, private val traversal: GraphTraversal) : TraversalFilter {
-    override fun accept(node: GraphNode) = when (node) {
-        rootNode -> true
-        is AnalyzeClass -> node.reference.accept()
-        is AnalyzeMethod -> node.accept() && node.containingClass.accept()
+    // the root is always accepted, so it only makes a difference when the configuration would hide it
+    private val fingerprint by lazy {
+        listOfNotNull(rootNode.takeUnless { it.acceptedByConfiguration() }?.nodeId(), serializer.toJson(global), serializer.toJson(traversal))
+                .joinToString("|")
+    }
+
+    override fun accept(node: GraphNode) = node == rootNode || node.acceptedByConfiguration()
+
+    override fun fingerprint() = fingerprint
+
+    private fun GraphNode.acceptedByConfiguration() = when (this) {
+        is AnalyzeClass -> reference.accept()
+        is AnalyzeMethod -> accept() && containingClass.accept()
+        else -> notReachable()
+    }
+
+    private fun GraphNode.nodeId() = when (this) {
+        is AnalyzeClass -> id()
+        is AnalyzeMethod -> id
         else -> notReachable()
     }
 
@@ -117,8 +122,8 @@ class GraphTraversalFilter(private val rootNode: GraphNode, private val global:
 
 
 private fun isIncludedAndNotExcluded(excludes: String, includes: String, extractor: () -> String) =
-        emptyOr(includes) { regEx -> regEx.any { it.matches(extractor()) } }
-                && emptyOr(excludes) { regEx -> regEx.none { it.matches(extractor()) } }
+        emptyOr(includes) { patterns -> patterns.matches(extractor()) }
+                && emptyOr(excludes) { patterns -> !patterns.matches(extractor()) }
 
 
 fun AnalyzeMethod.insideInterface() = containingClass.classType == ClassType.Interface
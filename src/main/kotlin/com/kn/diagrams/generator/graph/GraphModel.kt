@@ -9,6 +9,7 @@ data class MethodClassUsage(val clazz: AnalyzeClass, val method: AnalyzeMethod,
 enum class InheritanceType : EdgeContext { Implementation, SubClass }
 
 class GraphDirectedEdge(val from: GraphNode, val to: GraphNode, val context: List<EdgeContext>) { // also no parallel edges
+    val isTypeUsage = context.any { it is MethodClassUsage }
 
     override fun equals(other: Any?): Boolean {
         if (this === other) return true
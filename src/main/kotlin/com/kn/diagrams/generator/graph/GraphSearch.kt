@@ -2,6 +2,10 @@ package com.kn.diagrams.generator.graph
 
 import com.kn.diagrams.generator.toSingleList
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.stream.Collectors
 
 
 enum class EdgeMode { TypesOnly, MethodsOnly, TypesAndMethods, MethodsAndDirectTypeUsage }
@@ -10,109 +14,335 @@ class FindContext(private val cache: GraphCache,
                   private val direction: Direction,
                   private val filter: TraversalFilter,
                   private val depth: Int,
-                  private val edgeMode: EdgeMode
+                  private val edgeMode: EdgeMode,
+                  private val foreignRoots: ForeignRoots
 ) {
 
+    private val neighbors = cache.neighbors(edgeMode)
+
+    /**
+     * the edges of the root are searched as subtrees in parallel, each with its own visited nodes and edges. They are
+     * merged in the order of the sequential search: a subtree touching a node or edge visited by an earlier subtree would
+     * have been cut there, so only this subtree is searched again with the visited state of all earlier subtrees.
+     */
     fun find(root: GraphNode): List<List<SquashedGraphEdge>> {
+        val rootEdges = edgesOf(root)
+        if (rootEdges.size < 2) return findSequentially(root)
+
+        // the sequential search stacks the root edges, so the last edge is searched first
+        val subtrees = rootEdges.reversed().parallelStream()
+                .map { edge -> SearchState(tracked = true).let { state -> Triple(edge, state, search(listOf(edge), state)) } }
+                .collect(Collectors.toList())
+
+        val visited = SearchState(tracked = false)
+        return subtrees.flatMap { (edge, state, callChains) ->
+            if (state.touchesVisitedOf(visited)) {
+                search(listOf(edge), visited)
+            } else {
+                visited.addVisitedOf(state)
+                callChains
+            }
+        }
+    }
+
+    internal fun findSequentially(root: GraphNode) = search(edgesOf(root).toList(), SearchState(tracked = false))
+
+    private fun search(startEdges: List<GraphDirectedEdge>, state: SearchState): List<List<SquashedGraphEdge>> {
         val callChains = mutableListOf<List<SquashedGraphEdge>>()
 
-        val stack = Stack<GraphDirectedEdge>()
-        val expandedNodes = mutableSetOf<GraphNode>()
-        val processedEdges = mutableSetOf<GraphDirectedEdge>()
-        val currentChain = mutableListOf<GraphDirectedEdge>()
-        val currentSquashedChain = mutableListOf<SquashedGraphEdge>()
+        // every stacked edge knows the chain frame it continues, so backtracking doesn't need to touch the chain
+        val stack = ArrayDeque<PendingEdge>()
 
-        root.navigate().forEach { stack.add(it) }
+        startEdges.forEach { stack.push(PendingEdge(it, null)) }
 
         while (stack.isNotEmpty()) {
-            val current = stack.pop()
-            processedEdges.add(current)
-
-            cleanupChainsFromDeadEdges(current, currentChain, currentSquashedChain)
-
-            val moreEdges = current.next()
-                    .takeUnless { expandedNodes.contains(it) }
-                    ?.let {
-                        expandedNodes.add(it)
-                        it
-                    }
-                    ?.navigate()
-                    ?.filterNot { processedEdges.contains(it) }
-                    ?.filter { edgeMode != EdgeMode.MethodsAndDirectTypeUsage
-                            || it.context.none { it is MethodClassUsage }
-                            || filter.accept(current.next())
-                    }
-                    ?: emptySequence()
-
-            if (moreEdges.count() == 0 || currentSquashedChain.count { it.isComplete() } >= depth) {
-                callChains.add(currentSquashedChain.filter { it.isComplete() }.apply(direction))
+            val pending = stack.pop()
+            val current = pending.edge
+            state.process(current)
+
+            val frame = pending.chain.continuedBy(current)
+
+            val nextNode = current.next()
+            val edges = if (state.expand(nextNode)) edgesOf(nextNode) else noEdges
+            val typeUsageAccepted = edgeMode != EdgeMode.MethodsAndDirectTypeUsage || filter.accept(nextNode)
+            val moreEdges = edges.count { !state.isProcessed(it) && (typeUsageAccepted || !it.isTypeUsage) }
+
+            if (moreEdges == 0 || frame.completeEdges >= depth) {
+                callChains.add(frame.completeSquashedChain().apply(direction))
             } else {
-                moreEdges
-                        .filterNot { processedEdges.contains(it) }
-                        .forEach { stack.add(it) }
+                edges.forEach { edge ->
+                    if (!state.isProcessed(edge) && (typeUsageAccepted || !edge.isTypeUsage)) stack.push(PendingEdge(edge, frame))
+                }
             }
         }
 
         return callChains.toList()
     }
 
-    private fun cleanupChainsFromDeadEdges(current: GraphDirectedEdge, currentChain: MutableList<GraphDirectedEdge>, currentSquashedChain: MutableList<SquashedGraphEdge>) {
-        // cut off old node form different branch
-        val currentSourceNode = current.next(direction.flip())
+    private fun edgesOf(node: GraphNode): Array<GraphDirectedEdge> {
+        val edges = neighbors.of(node, direction)
+        if (foreignRoots.isEmpty()) return edges
+
+        return edges.filterNot { foreignRoots.isCut(it.next()) }.toTypedArray()
+    }
 
-        val matchingEdge = currentChain.firstOrNull { it.next() == currentSourceNode }
-        val shortenedChain = currentChain.dropLastWhile { it != matchingEdge }
-        val cleanupNeeded = shortenedChain.size != currentChain.size
+    private fun ChainFrame?.continuedBy(edge: GraphDirectedEdge): ChainFrame {
+        val completeEdges = this?.completeEdges ?: 0
+        val lastSquashed = this?.squashed
 
-        if (cleanupNeeded) {
-            currentChain.retainAll(shortenedChain)
-            currentSquashedChain.clear() // an edge an populate 2+ nodes so cleanup by removing is not easy
-            currentChain.forEach { currentSquashedChain.addSquashed(it, filter, direction) }
+        return if (lastSquashed == null || lastSquashed.isComplete()) {
+            val squashed = SquashedGraphEdge(edge, filter, direction)
+            ChainFrame(this, squashed, true, completeEdges + squashed.isComplete().toInt())
+        } else {
+            // the incomplete edge is copied because other branches continue the same frame
+            val squashed = lastSquashed.extendedBy(edge, filter, direction)
+            ChainFrame(this, squashed, false, completeEdges + squashed.isComplete().toInt())
         }
-
-        currentChain.add(current)
-        currentSquashedChain.addSquashed(current, filter, direction)
     }
 
+    private fun Boolean.toInt() = if (this) 1 else 0
+
     fun GraphDirectedEdge.next(navigationDirection: Direction = direction): GraphNode = when (navigationDirection) {
         Direction.Forward -> to
         Direction.Backward -> from
     }
+}
+
+class ReachableGraph(val nodes: Set<GraphNode>, val edges: Set<SquashedGraphEdge>)
+
+/**
+ * depth bounded subgraph reachable from the root, searched level by level without enumerating the chains.
+ * Hidden nodes are passed and squashed into the edge between the visible nodes around them.
+ */
+class ReachableContext(cache: GraphCache,
+                       private val direction: Direction,
+                       private val filter: TraversalFilter,
+                       private val depth: Int,
+                       private val edgeMode: EdgeMode,
+                       private val foreignRoots: ForeignRoots,
+                       private val memo: TraversalMemo
+) {
+    private val neighbors = cache.neighbors(edgeMode)
+    private val filterId = memo.filterId(filter, foreignRoots)
+
+    fun find(root: GraphNode): ReachableGraph {
+        val nodes = linkedSetOf(root)
+        val edges = LinkedHashSet<SquashedGraphEdge>()
+        val visitedNodes = mutableSetOf(root)
+
+        var level = listOf(root)
+        var currentDepth = 0
+        while (level.isNotEmpty() && currentDepth < depth) {
+            val nextLevel = mutableListOf<GraphNode>()
+            level.forEach { node ->
+                visibleNeighborsOf(node).forEach { (visibleNode, edge) ->
+                    edges.add(edge)
+                    nodes.add(visibleNode)
+                    if (visitedNodes.add(visibleNode)) nextLevel.add(visibleNode)
+                }
+            }
+
+            level = nextLevel
+            currentDepth++
+        }
+
+        return ReachableGraph(nodes, edges)
+    }
+
+    // the visible neighbors of a node don't depend on the root, so they are shared by all roots with the same filter
+    private fun visibleNeighborsOf(node: GraphNode) = memo.visibleNeighborsOf(TraversalKey(node, direction, edgeMode, filterId)) {
+        val squashedEdges = mutableListOf<Pair<GraphNode, SquashedGraphEdge>>()
+        squashedEdgesOf(node) { visibleNode, edge -> squashedEdges.add(visibleNode to edge) }
+        squashedEdges
+    }
+
+    private fun squashedEdgesOf(start: GraphNode, action: (GraphNode, SquashedGraphEdge) -> Unit) {
+        val hiddenNodes = mutableSetOf<GraphNode>()
+        val paths = ArrayDeque<Pair<GraphNode, List<GraphDirectedEdge>>>()
+        paths.add(start to emptyList())
+
+        while (paths.isNotEmpty()) {
+            val (node, path) = paths.poll()
+            val typeUsageAccepted = edgeMode != EdgeMode.MethodsAndDirectTypeUsage || filter.accept(node)
+
+            neighbors.of(node, direction).forEach { edge ->
+                if (!typeUsageAccepted && edge.isTypeUsage) return@forEach
+
+                val nextNode = edge.next()
+                if (foreignRoots.isCut(nextNode)) return@forEach
+
+                if (filter.accept(nextNode)) {
+                    action(nextNode, (path + edge).squash())
+                } else if (hiddenNodes.add(nextNode)) {
+                    paths.add(nextNode to path + edge)
+                }
+            }
+        }
+    }
 
-    private fun ClassReference?.resolve(): AnalyzeClass? {
-        if (this == null) return null
-        return cache.classes[id()]
+    private fun List<GraphDirectedEdge>.squash() = SquashedGraphEdge(this, filter, direction)
+
+    private fun GraphDirectedEdge.next(): GraphNode = when (direction) {
+        Direction.Forward -> to
+        Direction.Backward -> from
     }
+}
+
+internal data class TraversalKey(val node: GraphNode, val direction: Direction, val edgeMode: EdgeMode, val filterId: Int)
+
+/**
+ * visible neighbors of already searched nodes of one cache; shared by the roots of a generation run,
+ * so the hidden nodes of common downstream layers are only passed once
+ */
+class TraversalMemo {
+    private val filterIds: MutableMap<String, Int> = ConcurrentHashMap()
+    private val nextFilterId = AtomicInteger()
+    private val visibleNeighbors: MutableMap<TraversalKey, List<Pair<GraphNode, SquashedGraphEdge>>> = ConcurrentHashMap()
 
-    private fun MethodReference?.resolve(): AnalyzeMethod? {
-        if (this == null) return null
-        return cache.classes[classReference.id()]?.methods?.get(method)
+    // filters with the same fingerprint accept the same nodes, independent of their root
+    fun filterId(filter: TraversalFilter, foreignRoots: ForeignRoots) =
+            filterIds.computeIfAbsent(filter.fingerprint() + "|" + foreignRoots.fingerprint()) { nextFilterId.getAndIncrement() }
+
+    // concurrent roots may search the same node twice, but the result is equal
+    internal fun visibleNeighborsOf(key: TraversalKey, search: () -> List<Pair<GraphNode, SquashedGraphEdge>>) =
+            visibleNeighbors[key] ?: search().let { visibleNeighbors.putIfAbsent(key, it) ?: it }
+}
+
+/**
+ * roots of other diagrams which are only part of a shared view because they are pinned into it,
+ * every search not starting at them must not pass them
+ */
+class ForeignRoots(private val classIds: Set<String>, private val methodIds: Set<String>) {
+
+    fun isEmpty() = classIds.isEmpty() && methodIds.isEmpty()
+
+    fun isCut(node: GraphNode) = when (node) {
+        is AnalyzeClass -> node.id() in classIds
+        is AnalyzeMethod -> node.id in methodIds || node.containingClass.id() in classIds
+        else -> false
     }
 
+    fun fingerprint() = classIds.sorted().joinToString(",") + "|" + methodIds.sorted().joinToString(",")
+
+    companion object {
+        val none = ForeignRoots(emptySet(), emptySet())
+    }
+}
+
+private class PendingEdge(val edge: GraphDirectedEdge, val chain: ChainFrame?)
+
+/**
+ * expanded nodes and processed edges of a chain search; a tracked state also remembers every node and edge it was
+ * asked for, because the answer would have been different if another subtree visited them before
+ */
+private class SearchState(tracked: Boolean) {
+    private val expandedNodes: MutableSet<GraphNode> = HashSet()
+    private val processedEdges: MutableSet<GraphDirectedEdge> = HashSet()
+    private val touchedNodes: MutableSet<GraphNode>? = if (tracked) HashSet() else null
+    private val touchedEdges: MutableSet<GraphDirectedEdge>? = if (tracked) HashSet() else null
+
+    fun expand(node: GraphNode): Boolean {
+        touchedNodes?.add(node)
+        return expandedNodes.add(node)
+    }
+
+    fun isProcessed(edge: GraphDirectedEdge): Boolean {
+        touchedEdges?.add(edge)
+        return processedEdges.contains(edge)
+    }
+
+    fun process(edge: GraphDirectedEdge) {
+        touchedEdges?.add(edge)
+        processedEdges.add(edge)
+    }
+
+    fun touchesVisitedOf(other: SearchState) = touchedNodes.orEmpty().any { it in other.expandedNodes }
+            || touchedEdges.orEmpty().any { it in other.processedEdges }
+
+    fun addVisitedOf(other: SearchState) {
+        expandedNodes.addAll(other.expandedNodes)
+        processedEdges.addAll(other.processedEdges)
+    }
+}
+
+/**
+ * one edge of the current chain with the squashed edge it belongs to; frames are shared by all chains continuing them
+ */
+private class ChainFrame(val parent: ChainFrame?, val squashed: SquashedGraphEdge, val startsSquashedEdge: Boolean, val completeEdges: Int) {
+
+    fun completeSquashedChain(): List<SquashedGraphEdge> {
+        val chain = mutableListOf(squashed)
+        var frame = this
+        var parent = frame.parent
+        while (parent != null) {
+            if (frame.startsSquashedEdge) chain.add(parent.squashed)
+            frame = parent
+            parent = frame.parent
+        }
+
+        return chain.asReversed().filter { it.isComplete() }
+    }
+}
+
+/**
+ * deduplicated and merged edges of every node for one edge mode - computed on the first visit of a node
+ * in a direction and shared by all searches on the same cache
+ */
+class Neighbors(cache: GraphCache, edgeMode: EdgeMode, methodCount: Int, classCount: Int) {
+    private val symbols = cache.symbols
+    private val builders = Direction.values().map { NeighborBuilder(cache, it, edgeMode) }
+    private val methodNeighbors = Direction.values().map { AtomicReferenceArray<Array<GraphDirectedEdge>>(methodCount) }
+    private val classNeighbors = Direction.values().map { AtomicReferenceArray<Array<GraphDirectedEdge>>(classCount) }
+
+    fun of(node: GraphNode, direction: Direction): Array<GraphDirectedEdge> = when (node) {
+        is AnalyzeMethod -> of(node, symbols.find(node), direction, methodNeighbors[direction.ordinal])
+        is AnalyzeClass -> of(node, symbols.find(node.reference), direction, classNeighbors[direction.ordinal])
+        else -> noEdges
+    }
+
+    private fun of(node: GraphNode, symbol: Int, direction: Direction, neighbors: AtomicReferenceArray<Array<GraphDirectedEdge>>): Array<GraphDirectedEdge> {
+        val builder = builders[direction.ordinal]
+        if (symbol < 0 || symbol >= neighbors.length()) return builder.navigate(node)
+
+        // concurrent searches may compute the same edges twice, but the result is equal
+        return neighbors.get(symbol) ?: builder.navigate(node).also { neighbors.set(symbol, it) }
+    }
+}
+
+private class NeighborBuilder(private val cache: GraphCache, private val direction: Direction, private val edgeMode: EdgeMode) {
+
+    fun navigate(node: GraphNode) = node.navigate()
+
+    private fun ClassReference.resolve(): AnalyzeClass? = cache.classNode(cache.symbols.find(this))
+
+    private fun <P : Any> EdgeStore<P>.edgesOf(symbol: Int): Sequence<Pair<Int, P>> = (start(symbol) until end(symbol))
+            .asSequence()
+            .map { edge -> target(edge) to payload(edge) }
+
     private fun AnalyzeMethod.calls(): Sequence<GraphDirectedEdge> {
         if (edgeMode == EdgeMode.TypesOnly) return emptySequence()
 
         return if (direction == Direction.Forward) {
-            cache.forwardCalls[id()]?.asReversed()?.asSequence()
-                    ?.map { GraphDirectedEdge(it.source.resolve()!!, it.target.resolve()!!, it.toSingleList()) }
+            cache.forwardCallEdges.edgesOf(cache.symbols.find(this)).toList().asReversed().asSequence()
+                    .mapNotNull { (target, call) -> cache.methodNode(target)?.let { GraphDirectedEdge(this, it, call.toSingleList()) } }
         } else {
-            cache.backwardCalls[id()]?.asReversed()?.asSequence()
-                    ?.map { GraphDirectedEdge(it.source.resolve()!!, it.target.resolve()!!, it.toSingleList()) }
-        } ?: emptySequence()
+            cache.backwardCallEdges.edgesOf(cache.symbols.find(this)).toList().asReversed().asSequence()
+                    .mapNotNull { (source, call) -> cache.methodNode(source)?.let { GraphDirectedEdge(it, this, call.toSingleList()) } }
+        }
     }
 
     private fun AnalyzeMethod.classUsages(): Sequence<GraphDirectedEdge> {
         if (edgeMode == EdgeMode.MethodsOnly) return emptySequence()
 
         return if (direction == Direction.Forward) {
-            cache.forwardMethodClassUsage[id()]
-                    ?.groupBy { it.clazz }?.asSequence()
-                    ?.map { (clazz, references) -> GraphDirectedEdge(this, clazz, references) }
+            cache.methodClassUsageEdges.edgesOf(cache.symbols.find(this))
+                    .groupBy({ it.first }, { it.second }).asSequence()
+                    .mapNotNull { (clazz, references) -> cache.classNode(clazz)?.let { GraphDirectedEdge(this, it, references) } }
         } else {
-            cache.forwardMethodClassUsage[id()]
-                    ?.groupBy { it.clazz }?.asSequence()
-                    ?.map { (clazz, references) -> GraphDirectedEdge(clazz, this, references) } // inversed for bi-directional
-        } ?: emptySequence()
+            cache.methodClassUsageEdges.edgesOf(cache.symbols.find(this))
+                    .groupBy({ it.first }, { it.second }).asSequence()
+                    .mapNotNull { (clazz, references) -> cache.classNode(clazz)?.let { GraphDirectedEdge(it, this, references) } } // inversed for bi-directional
+        }
     }
 
     private fun AnalyzeClass.superTypeEdges(): Sequence<GraphDirectedEdge> {
@@ -133,15 +363,13 @@ class FindContext(private val cache: GraphCache,
         if (edgeMode == EdgeMode.MethodsOnly) return emptySequence()
 
         return if (direction == Direction.Forward) {
-            cache.forwardFieldClassUsage[reference]
-                    ?.groupBy { it.target }?.asSequence()
-                    ?.map { (target, fields) -> GraphDirectedEdge(this, target, fields) }
-                    ?: emptySequence()
+            cache.forwardFieldEdges.edgesOf(cache.symbols.find(reference))
+                    .groupBy({ it.first }, { it.second }).asSequence()
+                    .mapNotNull { (target, fields) -> cache.classNode(target)?.let { GraphDirectedEdge(this, it, fields) } }
         } else {
-            cache.backwardFieldClassUsage[reference]
-                    ?.groupBy { it.field.containingClass.resolve()!! }?.asSequence()
-                    ?.map { (source, fields) -> GraphDirectedEdge(source, this, fields) }
-                    ?: emptySequence()
+            cache.backwardFieldEdges.edgesOf(cache.symbols.find(reference))
+                    .groupBy({ it.first }, { it.second }).asSequence()
+                    .mapNotNull { (source, fields) -> cache.classNode(source)?.let { GraphDirectedEdge(it, this, fields) } }
         }
     }
 
@@ -149,18 +377,17 @@ class FindContext(private val cache: GraphCache,
         if (edgeMode == EdgeMode.MethodsOnly) return emptySequence()
 
         return if (direction == Direction.Forward) {
-            cache.impenitenceInverted[id()]?.asSequence()
-                    ?.mapNotNull { it.resolve() }
-                    ?.map { GraphDirectedEdge(this, it, InheritanceType.SubClass.toSingleList()) }
+            cache.subTypeEdges.edgesOf(cache.symbols.find(reference))
+                    .mapNotNull { (subType, _) -> cache.classNode(subType) }
+                    .map { GraphDirectedEdge(this, it, InheritanceType.SubClass.toSingleList()) }
         } else {
-            cache.impenitenceInverted[id()]?.asSequence()
-                    ?.mapNotNull { it.resolve() }
-                    ?.map { GraphDirectedEdge(it, this, InheritanceType.SubClass.toSingleList()) }
-
-        } ?: sequenceOf()
+            cache.subTypeEdges.edgesOf(cache.symbols.find(reference))
+                    .mapNotNull { (subType, _) -> cache.classNode(subType) }
+                    .map { GraphDirectedEdge(it, this, InheritanceType.SubClass.toSingleList()) }
+        }
     }
 
-    private fun GraphNode.navigate(): Sequence<GraphDirectedEdge> {
+    private fun GraphNode.navigate(): Array<GraphDirectedEdge> {
         return when (this) {
             is AnalyzeMethod -> calls() + classUsages()
             is AnalyzeClass -> fieldEdges() + superTypeEdges() + subTypeEdges()
@@ -170,7 +397,7 @@ class FindContext(private val cache: GraphCache,
 
     // non-unique / parallel edges destroy the graph traversal
     private fun Sequence<GraphDirectedEdge>.ensureUniqueDirectedEdge() = this
-            .groupBy { "" + it.to.hashCode() + "_" + it.from.hashCode() }.values
+            .groupBy { it.from to it.to }.values
             .map { edges ->
                 val first = edges.first()
                 if (edges.size > 1) {
@@ -178,29 +405,31 @@ class FindContext(private val cache: GraphCache,
                 } else {
                     first
                 }
-            }.asSequence()
+            }.toTypedArray()
 }
 
-fun MutableList<SquashedGraphEdge>.addSquashed(edge: GraphDirectedEdge, filter: TraversalFilter, direction: Direction) {
-    if (isEmpty() || last().isComplete()) {
-        add(SquashedGraphEdge(edge, filter, direction))
-    } else {
-        last().push(edge, filter, direction)
-    }
-}
 
-class SquashedGraphEdge(edge: GraphDirectedEdge, filter: TraversalFilter, val direction: Direction) {
-    private val edges = mutableListOf<GraphDirectedEdge>()
+val noEdges = emptyArray<GraphDirectedEdge>()
 
-    private val from: GraphNode
-    private var to: GraphNode?
+/**
+ * immutable edge between two visible nodes, squashing the hidden nodes between them. Equality is based
+ * on the nodes in natural direction, so the same edge found by the forward and backward search is equal.
+ */
+class SquashedGraphEdge private constructor(private val edges: List<GraphDirectedEdge>,
+                                            private val from: GraphNode,
+                                            private val to: GraphNode?,
+                                            val direction: Direction
+) {
+    private val hash = 31 * from().hashCode() + (to()?.hashCode() ?: 0)
 
-    init {
-        from = edge.next(direction.flip())
-        to = edge.next(direction).takeIf { filter.accept(it) }
+    constructor(edge: GraphDirectedEdge, filter: TraversalFilter, direction: Direction) : this(edge.toSingleList(), filter, direction)
 
-        edges.add(edge)
-    }
+    constructor(edges: List<GraphDirectedEdge>, filter: TraversalFilter, direction: Direction) : this(
+            edges,
+            edges.first().nodeIn(direction.flip()),
+            edges.last().nodeIn(direction).takeIf { filter.accept(it) },
+            direction
+    )
 
     fun edges() = if (direction == Direction.Forward) edges else edges.asReversed() // backward: edges are seen in the opposite order of the direction
 
@@ -208,21 +437,13 @@ class SquashedGraphEdge(edge: GraphDirectedEdge, filter: TraversalFilter, val di
 
     fun isComplete() = to != null
 
-    fun push(edge: GraphDirectedEdge, filter: TraversalFilter, direction: Direction) {
-        to = edge.next(direction).takeIf { filter.accept(it) }
-        edges.add(edge)
-    }
+    fun extendedBy(edge: GraphDirectedEdge, filter: TraversalFilter, direction: Direction) = SquashedGraphEdge(edges + edge, filter, direction)
 
     fun from() = if (direction == Direction.Forward) from else to
     fun to() = if (direction == Direction.Forward) to else from
 
-    fun GraphDirectedEdge.next(navigationDirection: Direction = direction): GraphNode = when (navigationDirection) {
-        Direction.Forward -> to
-        Direction.Backward -> from
-    }
-
     override fun toString(): String {
-        return if (direction == Direction.Forward) { // from/to is inverse for backward direction, but natural direction is printed
+        return if (direction == Direction.Forward) {
             "${from()}->${to()}"
         } else {
             "${to()}->${from()}"
@@ -230,14 +451,25 @@ class SquashedGraphEdge(edge: GraphDirectedEdge, filter: TraversalFilter, val di
     }
 
     override fun equals(other: Any?): Boolean {
-        return toString() == other?.toString()
+        if (this === other) return true
+        if (other !is SquashedGraphEdge) return false
+
+        if (hash != other.hash) return false
+        if (from() != other.from()) return false
+        if (to() != other.to()) return false
+
+        return true
     }
 
     override fun hashCode(): Int {
-        return 31 * toString().hashCode()
+        return hash
     }
 
+}
 
+private fun GraphDirectedEdge.nodeIn(direction: Direction): GraphNode = when (direction) {
+    Direction.Forward -> to
+    Direction.Backward -> from
 }
 
 enum class Direction {
@@ -253,7 +485,13 @@ class SearchContext {
     var forwardDepth: Int? = null
     var backwardDepth: Int? = null
     var edgeMode: EdgeMode = EdgeMode.TypesAndMethods
+    var memo: TraversalMemo? = null // only used by the reachable search
     lateinit var roots: List<GraphNode>
+
+    fun depthByDirection() = listOfNotNull(
+            forwardDepth?.takeIf { it > 0 }?.let { Direction.Forward to it },
+            backwardDepth?.takeIf { it > 0 }?.let { Direction.Backward to it }
+    )
 }
 
 private fun <T> List<T>.apply(direction: Direction): List<T> = when (direction) {
@@ -0,0 +1,354 @@
+package com.kn.diagrams.generator.graph
+
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.fileEditor.FileDocumentManager
+import com.intellij.openapi.project.Project
+import com.intellij.psi.PsiClass
+import java.io.BufferedOutputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.stream.Collectors
+
+data class FileStamp(val timeStamp: Long, val length: Long)
+
+// unsaved documents are not reflected by the file stamp, so they are never restored from a snapshot
+fun PsiClass.fileStamp(): FileStamp? {
+    val file = containingFile?.originalFile?.virtualFile ?: return null
+    if (FileDocumentManager.getInstance().isFileModified(file)) return null
+
+    return FileStamp(file.timeStamp, file.length)
+}
+
+/**
+ * binary snapshot of analyzed classes; the file is memory mapped and a class is only decoded
+ * when its file stamp still matches, so unchanged classes are not analyzed again after a restart.
+ * The strings and the entries are located by their offsets and decoded on first access only.
+ */
+class GraphSnapshot private constructor(private val buffer: ByteBuffer,
+                                        private val strings: SnapshotStrings,
+                                        private val entryTable: Int,
+                                        private val entryCount: Int,
+                                        private val data: Int
+) {
+
+    /**
+     * @param project the restored methods resolve their JavaDoc in
+     */
+    fun restore(classId: String, stamp: FileStamp, project: Project?): AnalyzeClass? {
+        val entry = entryOf(classId).takeIf { it >= 0 } ?: return null
+        val entryStamp = FileStamp(buffer.getLong(entry + 4), buffer.getLong(entry + 12))
+        if (entryStamp != stamp) return null
+
+        return try {
+            SnapshotInput(buffer.duplicate().also { it.position(data + buffer.getInt(entry + 20)) }, strings, project).readClass()
+        } catch (e: RuntimeException) {
+            LOG.warn("snapshot entry of $classId could not be restored", e)
+            null
+        }
+    }
+
+    fun classIds(): List<String> = (0 until entryCount).map { strings[buffer.getInt(entryTable + it * ENTRY_SIZE)] }
+
+    // the entries are sorted by their class id
+    private fun entryOf(classId: String): Int {
+        var low = 0
+        var high = entryCount - 1
+        while (low <= high) {
+            val middle = (low + high) ushr 1
+            val entry = entryTable + middle * ENTRY_SIZE
+            val comparison = strings[buffer.getInt(entry)].compareTo(classId)
+            when {
+                comparison < 0 -> low = middle + 1
+                comparison > 0 -> high = middle - 1
+                else -> return entry
+            }
+        }
+
+        return -1
+    }
+
+    companion object {
+        private val LOG = Logger.getInstance("#org.plantuml.idea.com.kn.diagramgeneration.graph.GraphSnapshot")
+
+        private const val MAGIC = 0x504c4753
+        private const val VERSION = 3
+        private const val ENTRY_SIZE = 24 // class id, time stamp, length, offset
+
+        /**
+         * @param file base name of the snapshot, the latest generation is loaded
+         */
+        fun load(file: Path): GraphSnapshot? {
+            val latest = generations(file).maxByOrNull { it.first }?.second ?: return null
+
+            return try {
+                val buffer = FileChannel.open(latest, StandardOpenOption.READ).use { it.map(FileChannel.MapMode.READ_ONLY, 0, it.size()) }
+                if (buffer.int != MAGIC || buffer.int != VERSION) return null
+
+                val stringCount = buffer.int
+                val stringOffsets = buffer.position()
+                buffer.position(stringOffsets + 4 * stringCount)
+                val stringLength = buffer.int
+                val stringData = buffer.position()
+                buffer.position(stringData + stringLength)
+
+                val entryCount = buffer.int
+                val entryTable = buffer.position()
+
+                GraphSnapshot(buffer, SnapshotStrings(buffer, stringCount, stringOffsets, stringData, stringLength),
+                        entryTable, entryCount, entryTable + entryCount * ENTRY_SIZE)
+            } catch (e: Exception) {
+                LOG.warn("snapshot $latest could not be loaded", e)
+                null
+            }
+        }
+
+        /**
+         * writes a new generation, because a loaded generation stays mapped and can't be replaced on every platform
+         *
+         * @param file base name of the snapshot
+         */
+        fun save(file: Path, classes: Collection<AnalyzeClass>, stamps: Map<String, FileStamp>) {
+            val output = SnapshotOutput()
+            val entries = classes.mapNotNull { clazz ->
+                stamps[clazz.id()]?.let { stamp -> Triple(clazz.id(), stamp, output.writeClass(clazz)) }
+            }.sortedBy { (classId, _, _) -> classId }
+                    .map { (classId, stamp, offset) -> Triple(output.stringId(classId), stamp, offset) }
+
+            Files.createDirectories(file.parent)
+            val previousGenerations = generations(file)
+            val generationFile = generationFile(file, (previousGenerations.map { it.first }.maxOrNull() ?: 0) + 1)
+            val tempFile = generationFile.resolveSibling(generationFile.fileName.toString() + ".tmp")
+            DataOutputStream(BufferedOutputStream(Files.newOutputStream(tempFile))).use { out ->
+                out.writeInt(MAGIC)
+                out.writeInt(VERSION)
+
+                val encodedStrings = output.strings.keys.map { it.toByteArray(Charsets.UTF_8) }
+                out.writeInt(encodedStrings.size)
+                var stringOffset = 0
+                encodedStrings.forEach { bytes ->
+                    out.writeInt(stringOffset)
+                    stringOffset += bytes.size
+                }
+                out.writeInt(stringOffset)
+                encodedStrings.forEach { out.write(it) }
+
+                out.writeInt(entries.size)
+                entries.forEach { (classId, stamp, offset) ->
+                    out.writeInt(classId)
+                    out.writeLong(stamp.timeStamp)
+                    out.writeLong(stamp.length)
+                    out.writeInt(offset)
+                }
+
+                output.bytes.writeTo(out)
+            }
+            Files.move(tempFile, generationFile)
+
+            // mapped generations can't be deleted on every platform, they are deleted by one of the next saves
+            previousGenerations.forEach { (_, previous) ->
+                try {
+                    Files.deleteIfExists(previous)
+                } catch (e: IOException) {
+                    LOG.debug("previous snapshot $previous is still in use", e)
+                }
+            }
+        }
+
+        fun delete(file: Path) {
+            generations(file).forEach { (_, generation) -> Files.deleteIfExists(generation) }
+        }
+
+        private fun generationFile(file: Path, generation: Long) = file.resolveSibling("${file.fileName}.$generation.bin")
+
+        private fun generations(file: Path): List<Pair<Long, Path>> {
+            if (!Files.isDirectory(file.parent)) return emptyList()
+
+            val prefix = "${file.fileName}."
+            return Files.list(file.parent).use { files -> files.collect(Collectors.toList()) }
+                    .mapNotNull { path ->
+                        val name = path.fileName.toString()
+                        name.takeIf { it.startsWith(prefix) && it.endsWith(".bin") }
+                                ?.removePrefix(prefix)?.removeSuffix(".bin")?.toLongOrNull()
+                                ?.let { generation -> generation to path }
+                    }
+        }
+    }
+}
+
+/**
+ * string table of a snapshot - every string is decoded on its first use only
+ */
+private class SnapshotStrings(private val buffer: ByteBuffer, count: Int, private val offsets: Int, private val data: Int, private val length: Int) {
+    // concurrent restores may decode the same string twice, but the result is equal
+    private val decoded = arrayOfNulls<String>(count)
+
+    operator fun get(id: Int): String = decoded[id] ?: decode(id).also { decoded[id] = it }
+
+    private fun decode(id: Int): String {
+        val start = buffer.getInt(offsets + 4 * id)
+        val end = if (id + 1 < decoded.size) buffer.getInt(offsets + 4 * (id + 1)) else length
+        val bytes = ByteArray(end - start)
+        buffer.duplicate().also { it.position(data + start) }.get(bytes)
+
+        return String(bytes, Charsets.UTF_8)
+    }
+}
+
+private class SnapshotOutput {
+    val strings: MutableMap<String, Int> = LinkedHashMap()
+    val bytes = ByteArrayOutputStream()
+    private val out = DataOutputStream(bytes)
+
+    fun stringId(value: String) = strings.getOrPut(value) { strings.size }
+
+    /**
+     * @return offset of the class inside the data section
+     */
+    fun writeClass(clazz: AnalyzeClass): Int {
+        val offset = out.size()
+
+        writeClassReference(clazz.reference)
+        out.writeByte(clazz.classType.ordinal)
+        writeList(clazz.superTypes) { writeClassReference(it) }
+        writeList(clazz.annotations) { writeAnnotation(it) }
+        writeList(clazz.fields) { field ->
+            writeVariable(field)
+            writeNullable(field.containingClass) { writeClassReference(it) }
+            out.writeByte(field.visibility.ordinal)
+            out.writeBoolean(field.isEnumInstance)
+        }
+        writeList(clazz.methods.values.toList()) { writeMethod(it) }
+        writeList(clazz.calls.values.flatten()) { call ->
+            writeMethodReference(call.source)
+            writeMethodReference(call.target)
+            writeList(call.annotations) { writeAnnotation(it) }
+            out.writeInt(call.sequence)
+        }
+
+        return offset
+    }
+
+    private fun writeMethod(method: AnalyzeMethod) {
+        writeString(method.name)
+        writeList(method.annotations) { writeAnnotation(it) }
+        writeString(method.id)
+        writeClassReference(method.containingClass)
+        out.writeByte(method.visibility.ordinal)
+        writeString(method.returnTypeDisplay)
+        writeList(method.returnTypes) { writeClassReference(it) }
+        writeList(method.parameter) { writeVariable(it) }
+        out.writeBoolean(method.isConstructor)
+    }
+
+    private fun writeVariable(variable: Variable) {
+        writeString(variable.name)
+        writeList(variable.annotations) { writeAnnotation(it) }
+        writeList(variable.types) { writeClassReference(it) }
+        out.writeBoolean(variable.isCollection)
+        out.writeBoolean(variable.isPrimitive)
+        writeString(variable.typeDisplay)
+    }
+
+    private fun writeAnnotation(annotation: AnalyzeAnnotation) {
+        writeClassReference(annotation.type)
+        writeList(annotation.parameter) {
+            writeString(it.name)
+            writeString(it.value)
+        }
+    }
+
+    private fun writeMethodReference(reference: MethodReference) {
+        writeClassReference(reference.classReference)
+        writeString(reference.method)
+    }
+
+    private fun writeClassReference(reference: ClassReference) {
+        writeString(reference.name)
+        writeString(reference.displayName)
+        writeString(reference.path)
+        out.writeByte(reference.classType.ordinal)
+        writeString(reference.absolutePath)
+    }
+
+    private fun writeString(value: String?) = out.writeInt(value?.let { stringId(it) } ?: -1)
+
+    private fun <T> writeNullable(value: T?, write: (T) -> Unit) {
+        out.writeBoolean(value != null)
+        value?.let(write)
+    }
+
+    private fun <T> writeList(values: List<T>, write: (T) -> Unit) {
+        out.writeInt(values.size)
+        values.forEach(write)
+    }
+}
+
+private class SnapshotInput(private val buffer: ByteBuffer, private val strings: SnapshotStrings, private val project: Project?) {
+
+    fun readClass(): AnalyzeClass {
+        val reference = readClassReference()
+        val classType = ClassType.values()[buffer.get().toInt()]
+        val superTypes = readList { readClassReference() }
+        val annotations = readList { readAnnotation() }
+        val fields = readList {
+            AnalyzeField(readVariable(), readNullable { readClassReference() }, MethodVisibility.values()[buffer.get().toInt()], readBoolean())
+        }
+        val methods = readList { readMethod() }.associateBy { it.id }
+        val calls = readList {
+            AnalyzeCall(readMethodReference(), readMethodReference(), readList { readAnnotation() }, buffer.int)
+        }
+
+        return AnalyzeClass(reference, classType, fields, methods, calls.groupBy { it.source.classReference.id() }, superTypes, annotations)
+    }
+
+    private fun readMethod() = AnalyzeMethod(
+            readString()!!,
+            readList { readAnnotation() },
+            readString()!!,
+            readClassReference(),
+            MethodVisibility.values()[buffer.get().toInt()],
+            readString(),
+            readList { readClassReference() },
+            readList { MethodParameter(readVariable()) },
+            readBoolean(),
+            project
+    )
+
+    private fun readVariable() = VariableType(
+            readString()!!,
+            readList { readAnnotation() },
+            readList { readClassReference() },
+            readBoolean(),
+            readBoolean(),
+            readString()!!
+    )
+
+    private fun readAnnotation() = AnalyzeAnnotation(
+            readClassReference(),
+            readList { AnnotationParameter(readString()!!, readString()!!) }
+    )
+
+    private fun readMethodReference() = MethodReference(readClassReference(), readString()!!)
+
+    private fun readClassReference() = ClassReference(
+            readString()!!,
+            readString()!!,
+            readString()!!,
+            ClassType.values()[buffer.get().toInt()],
+            readString()
+    )
+
+    private fun readString(): String? = buffer.int.takeIf { it >= 0 }?.let { strings[it] }
+
+    private fun readBoolean() = buffer.get().toInt() != 0
+
+    private fun <T> readNullable(read: () -> T): T? = if (readBoolean()) read() else null
+
+    private fun <T> readList(read: () -> T): List<T> = List(buffer.int) { read() }
+}
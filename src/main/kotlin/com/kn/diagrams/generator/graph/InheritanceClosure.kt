@@ -0,0 +1,37 @@
+package com.kn.diagrams.generator.graph
+
+/**
+ * transitive super types and inherited annotations of the classes - every class is resolved once and reuses
+ * the closures of its direct super types, so deep hierarchies are not walked again for every sub type
+ */
+class InheritanceClosure(private val classes: Map<String, AnalyzeClass>) {
+    private val superClasses: MutableMap<ClassReference, Set<AnalyzeClass>> = HashMap()
+    private val annotations: MutableMap<ClassReference, Set<AnalyzeAnnotation>> = HashMap()
+    private val inProgress: MutableSet<ClassReference> = HashSet()
+
+    fun superClassesOf(clazz: ClassReference): Set<AnalyzeClass> {
+        superClasses[clazz]?.let { return it }
+        if (!inProgress.add(clazz)) return emptySet() // cyclic hierarchies of broken code
+
+        val closure = LinkedHashSet<AnalyzeClass>()
+        classes[clazz.id()]?.superTypes?.forEach { superType ->
+            val superClass = classes[superType.id()] ?: return@forEach
+            closure.add(superClass)
+            closure.addAll(superClassesOf(superClass.reference))
+        }
+        closure.removeIf { it.reference == clazz }
+
+        inProgress.remove(clazz)
+        superClasses[clazz] = closure
+
+        return closure
+    }
+
+    // annotations of the class itself and of all super types
+    fun annotationsOf(clazz: ClassReference): Set<AnalyzeAnnotation> = annotations.getOrPut(clazz) {
+        val closure = LinkedHashSet<AnalyzeAnnotation>()
+        classes[clazz.id()]?.annotations?.let { closure.addAll(it) }
+        superClassesOf(clazz).forEach { closure.addAll(it.annotations) }
+        closure
+    }
+}
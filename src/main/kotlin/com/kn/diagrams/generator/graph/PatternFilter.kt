@@ -0,0 +1,38 @@
+package com.kn.diagrams.generator.graph
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * semicolon separated wildcard patterns compiled into one case insensitive regex. Filters are shared by their
+ * plain text and remember the result per value, because the same names and packages are checked over and over.
+ */
+class PatternFilter private constructor(plainFilter: String) {
+    private val regex: Regex? = plainFilter.takeIf { it != "" }
+            ?.split(";")
+            ?.joinToString("|") { "(?:" + it.replace("*", ".*") + ")" }
+            ?.toRegex(RegexOption.IGNORE_CASE)
+    private val results: MutableMap<String, Boolean> = ConcurrentHashMap()
+
+    fun isEmpty() = regex == null
+
+    fun matches(value: String): Boolean {
+        if (regex == null) return false
+
+        return results[value] ?: regex.matches(value).also { if (results.size < maxResults) results[value] = it }
+    }
+
+    companion object {
+        private const val maxFilters = 500
+        private const val maxResults = 100_000
+
+        private val filters: MutableMap<String, PatternFilter> = ConcurrentHashMap()
+
+        fun of(plainFilter: String): PatternFilter {
+            if (filters.size > maxFilters) filters.clear() // edited configurations leave unused filters behind
+
+            return filters.computeIfAbsent(plainFilter) { PatternFilter(it) }
+        }
+    }
+}
+
+fun String.patterns() = PatternFilter.of(this)
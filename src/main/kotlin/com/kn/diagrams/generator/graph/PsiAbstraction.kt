@@ -1,12 +1,14 @@
 package com.kn.diagrams.generator.graph
 
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.project.Project
 import com.intellij.openapi.project.ProjectManager
 import com.intellij.psi.*
 import com.intellij.psi.impl.source.PsiClassReferenceType
 import com.intellij.psi.javadoc.PsiDocComment
+import com.intellij.psi.search.GlobalSearchScope
 import com.intellij.psi.util.PsiTypesUtil
 import com.intellij.psi.util.elementType
-import com.kn.diagrams.generator.cast
 import com.kn.diagrams.generator.config.simpleSignature
 import com.kn.diagrams.generator.escape
 import com.kn.diagrams.generator.inReadAction
@@ -15,41 +17,63 @@ import org.jetbrains.java.generate.psi.PsiAdapter
 import java.util.*
 
 
-class AnalyzeClass(clazz: PsiClass, filter: RestrictionFilter) : GraphNode {
-    val reference: ClassReference = ClassReference(clazz)
-    val classType: ClassType = clazz.type()
+class AnalyzeClass : GraphNode {
+    val reference: ClassReference
+    val classType: ClassType
     val fields: List<AnalyzeField>
     val methods: Map<String, AnalyzeMethod>
     val calls: Map<String, List<AnalyzeCall>>
-    val superTypes: List<ClassReference> = clazz.supers.map { it.reference() }.filter { filter.acceptClass(it) }
-    val annotations: List<AnalyzeAnnotation> = clazz.annotations.map { AnalyzeAnnotation(it) }
+    val superTypes: List<ClassReference>
+    val annotations: List<AnalyzeAnnotation>
 
-    init {
+    constructor(clazz: PsiClass) {
+        reference = ClassReference(clazz)
+        classType = clazz.type()
+        superTypes = clazz.supers.map { it.reference() }
+        annotations = clazz.annotations.map { AnalyzeAnnotation(it) }
         fields = clazz.fields
                 .filterNot { it.hasModifierProperty(PsiModifier.STATIC) && it !is PsiEnumConstant }
                 .map { AnalyzeField(it) }
 
-        val relevantMethods = clazz.methods.asSequence().map { it to AnalyzeMethod(it) }.filter { filter.acceptMethod(it.second) }
-        methods = relevantMethods.map { it.second.id() to it.second }.toMap()
+        methods = clazz.methods.asSequence().map { AnalyzeMethod(it) }.map { it.id() to it }.toMap()
 
-        calls = relevantMethods.asSequence()
-                .map { it.first }
+        val extractor = CallExtractor()
+        calls = clazz.methods.asSequence()
                 .flatMap { psiMethod ->
                     val virtualInheritanceCalls = psiMethod.findSuperMethodSignaturesIncludingStatic(true).map {
-                        AnalyzeCall(it.method, psiMethod, sequence = -1)
+                        AnalyzeCall(extractor.reference(it.method), extractor.reference(psiMethod), emptyList(), -1)
                     }.asSequence()
-                    val directCalls = psiMethod.visitCalls<AnalyzeCall> { psiCall, i ->
-                        val targetMethod = psiCall.resolveMethod()
-                        if (targetMethod?.containingClass != null) {
-                            add(AnalyzeCall(psiMethod, targetMethod, psiCall, i))
-
-                        }
-                    }
+                    val directCalls = extractor.callsOf(psiMethod).asSequence()
 
                     directCalls union virtualInheritanceCalls
                 }.groupBy { it.source.classReference.id() }
     }
 
+    constructor(reference: ClassReference, classType: ClassType, fields: List<AnalyzeField>, methods: Map<String, AnalyzeMethod>,
+                calls: Map<String, List<AnalyzeCall>>, superTypes: List<ClassReference>, annotations: List<AnalyzeAnnotation>) {
+        this.reference = reference
+        this.classType = classType
+        this.fields = fields
+        this.methods = methods
+        this.calls = calls
+        this.superTypes = superTypes
+        this.annotations = annotations
+    }
+
+    // restricted view on an unrestricted class, the analyzed methods and calls are shared
+    constructor(clazz: AnalyzeClass, filter: RestrictionFilter) {
+        reference = clazz.reference
+        classType = clazz.classType
+        superTypes = clazz.superTypes // not restricted, so a later pinned super type is linked to its existing sub types
+        annotations = clazz.annotations
+        fields = clazz.fields
+        val acceptedMethods = clazz.methods.filterValues { filter.acceptMethod(it) }
+        methods = acceptedMethods
+        calls = clazz.calls
+                .mapValues { (_, calls) -> calls.filter { call -> call.isProducedBy(reference, acceptedMethods) } }
+                .filterValues { it.isNotEmpty() }
+    }
+
     fun id() = reference.id()
 
     override fun equals(other: Any?): Boolean {
@@ -72,34 +96,96 @@ class AnalyzeClass(clazz: PsiClass, filter: RestrictionFilter) : GraphNode {
 }
 
 
-inline fun <T> PsiMethod.visitCalls(crossinline action: MutableList<T>.(PsiCall, Int) -> Unit): Sequence<T> {
-    val callVisitor = object : PsiRecursiveElementVisitor() {
-        var counter: Int = 0
-        var elements: MutableList<T> = mutableListOf()
-        override fun visitElement(call: PsiElement) {
-            if (call is PsiCall) {
-                action(elements, call, counter)
-                counter++
+// inherited calls are produced by the overriding method, all other calls by the calling method
+private fun AnalyzeCall.isProducedBy(clazz: ClassReference, methods: Map<String, AnalyzeMethod>) = if (source.classReference == clazz) {
+    methods.containsKey(source.method)
+} else {
+    methods.containsKey(target.method)
+}
+
+/**
+ * calls of the methods of one class - the same methods are called again and again inside a file,
+ * so the reference of every resolved method is only built once
+ */
+private class CallExtractor {
+    private val references: MutableMap<PsiMethod, MethodReference> = HashMap()
+
+    fun reference(method: PsiMethod) = references.getOrPut(method) { method.reference() }
+
+    fun callsOf(method: PsiMethod): List<AnalyzeCall> {
+        val source = reference(method)
+        val calls = mutableListOf<AnalyzeCall>()
+
+        method.accept(object : JavaRecursiveElementWalkingVisitor() {
+            var sequence = 0 // counts all calls, also the unresolved ones
+
+            override fun visitCallExpression(expression: PsiCallExpression) {
+                visitCall(expression)
+                super.visitCallExpression(expression)
+            }
+
+            override fun visitEnumConstant(enumConstant: PsiEnumConstant) {
+                visitCall(enumConstant)
+                super.visitEnumConstant(enumConstant)
             }
-            super.visitElement(call)
-        }
-    }
-    accept(callVisitor)
 
-    return callVisitor.elements.asSequence()
+            private fun visitCall(call: PsiCall) {
+                val targetMethod = call.resolveMethod()
+                if (targetMethod?.containingClass != null) {
+                    calls.add(AnalyzeCall(source, reference(targetMethod), call.annotationsMapped(), sequence))
+                }
+                sequence++
+            }
+        })
+
+        return calls
+    }
 }
 
 
-class AnalyzeMethod(method: PsiMethod) : AnalyzeAttribute(method.name, method.annotationsMapped()), GraphNode {
-    val id: String = method.id()
-    val containingClass: ClassReference = method.containingClass!!.reference()
-    val visibility: MethodVisibility = method.modifierList.visibility()
-    val returnTypeDisplay: String? = method.returnType?.presentableText
-    val returnTypes: List<ClassReference> = method.returnType.structureRelevantTypes().map { it.reference() }
-    val parameter: List<MethodParameter> = method.parameterList.parameters
-            .map { MethodParameter(it.name, it.type, it.annotationsMapped()) }
-    val javaDoc = method.javaDoc()
-    val isConstructor = method.isConstructor
+class AnalyzeMethod(name: String,
+                    annotations: List<AnalyzeAnnotation>,
+                    val id: String,
+                    val containingClass: ClassReference,
+                    val visibility: MethodVisibility,
+                    val returnTypeDisplay: String?,
+                    val returnTypes: List<ClassReference>,
+                    val parameter: List<MethodParameter>,
+                    val isConstructor: Boolean,
+                    private val project: Project? // the JavaDoc is resolved in the project the method was analyzed in
+) : AnalyzeAttribute(name, annotations), GraphNode {
+
+    constructor(method: PsiMethod) : this(
+            method.name,
+            method.annotationsMapped(),
+            method.id(),
+            method.containingClass!!.reference(),
+            method.modifierList.visibility(),
+            method.returnType?.presentableText,
+            method.returnType.structureRelevantTypes().map { it.reference() },
+            method.parameterList.parameters.map { MethodParameter(it.name, it.type, it.annotationsMapped()) },
+            method.isConstructor,
+            method.project
+    )
+
+    @Volatile
+    private var resolvedJavaDoc: Any? = NotResolved
+
+    // resolved on the first access because only the methods shown in a diagram need it
+    val javaDoc: String?
+        get() {
+            val javaDoc = resolvedJavaDoc
+            if (javaDoc !== NotResolved) return javaDoc as String?
+
+            return withReadAccess { findPsiMethod()?.javaDoc() }.also { resolvedJavaDoc = it }
+        }
+
+    // the id is stable across changes and restarts, so restored methods are found as well; other open projects
+    // may contain the same class, e.g. a second checkout of the repository
+    private fun findPsiMethod(): PsiMethod? = project?.takeUnless { it.isDisposed }
+            ?.let { JavaPsiFacade.getInstance(it).findClass(containingClass.qualifiedName(), GlobalSearchScope.allScope(it)) }
+            ?.methods
+            ?.firstOrNull { it.id() == id }
 
     override fun id(): String {
         return id
@@ -123,10 +209,22 @@ class AnalyzeMethod(method: PsiMethod) : AnalyzeAttribute(method.name, method.an
     }
 }
 
-class AnalyzeField(field: PsiField) : Variable(field.name, field.type, field.annotationsMapped()) {
-    val containingClass: ClassReference? = field.containingClass?.reference()
-    val visibility: MethodVisibility = field.modifierList?.visibility() ?: MethodVisibility.PACKAGE_LOCAL
-    val isEnumInstance: Boolean = field is PsiEnumConstant
+class AnalyzeField : Variable {
+    val containingClass: ClassReference?
+    val visibility: MethodVisibility
+    val isEnumInstance: Boolean
+
+    constructor(field: PsiField) : super(field.name, field.type, field.annotationsMapped()) {
+        containingClass = field.containingClass?.reference()
+        visibility = field.modifierList?.visibility() ?: MethodVisibility.PACKAGE_LOCAL
+        isEnumInstance = field is PsiEnumConstant
+    }
+
+    constructor(variable: VariableType, containingClass: ClassReference?, visibility: MethodVisibility, isEnumInstance: Boolean) : super(variable) {
+        this.containingClass = containingClass
+        this.visibility = visibility
+        this.isEnumInstance = isEnumInstance
+    }
 
     override fun equals(other: Any?): Boolean {
         if (this === other) return true
@@ -186,7 +284,17 @@ class ClassReference {
     }
 
 
-    fun id() = "$path;$name"
+    constructor(name: String, displayName: String, path: String, classType: ClassType, absolutePath: String?) {
+        this.name = name
+        this.displayName = displayName
+        this.path = path
+        this.classType = classType
+        this.absolutePath = absolutePath
+    }
+
+    private var id: String? = null
+
+    fun id() = id ?: "$path;$name".also { id = it }
 
     fun qualifiedName() = "$path.$name"
 
@@ -242,31 +350,23 @@ enum class MethodVisibility(val value: String) {
     PACKAGE_LOCAL("packageLocal")
 }
 
-class AnalyzeCall(callSource: PsiMethod, callTarget: PsiMethod, call: PsiCall? = null, val sequence: Int) : EdgeContext {
-    val source: MethodReference = callSource.reference()
-    val target: MethodReference = callTarget.reference()
-
-    val annotations: List<AnalyzeAnnotation> = call?.parent?.children
-            ?.mapNotNull { it.cast<PsiModifierList>() }
-            ?.flatMap {
-                it.children
-                        .mapNotNull { it.cast<PsiAnnotation>() }
-                        .map { AnalyzeAnnotation(it) }
-            } ?: emptyList()
+class AnalyzeCall(val source: MethodReference, val target: MethodReference, val annotations: List<AnalyzeAnnotation>, val sequence: Int) : EdgeContext {
 
     fun id() = source.method + "#" + target.method
 
+    // compared without building the id, the hash of the method strings is cached by the strings themselves
     override fun equals(other: Any?): Boolean {
         if (this === other) return true
         if (other !is AnalyzeCall) return false
 
-        if (id() != other.id()) return false
+        if (source.method != other.source.method) return false
+        if (target.method != other.target.method) return false
 
         return true
     }
 
     override fun hashCode(): Int {
-        return id().hashCode()
+        return 31 * source.method.hashCode() + target.method.hashCode()
     }
 
     override fun toString(): String {
@@ -275,6 +375,12 @@ class AnalyzeCall(callSource: PsiMethod, callTarget: PsiMethod, call: PsiCall? =
 }
 
 
+private object NotResolved
+
+// tooltips are created inside and outside of read actions, and read actions must not be stacked
+private fun <T> withReadAccess(action: () -> T): T =
+        if (ApplicationManager.getApplication().isReadAccessAllowed) action() else inReadAction(action)
+
 fun PsiMethod.javaDoc(): String? {
     var javadoc = (docComment ?: modifierList.children.asSequence()
             .firstOrNull { it is PsiDocComment })
@@ -306,13 +412,16 @@ fun PsiMethod.javaDoc(): String? {
     return javadoc?.escape()
 }
 
-class AnalyzeAnnotation(annotation: PsiAnnotation) {
-    val type: ClassReference = ClassReference(annotation)
-    val parameter: List<AnnotationParameter> = annotation.parameterList.attributes
-            .map {
-                AnnotationParameter(it.attributeName, it.literalValue
-                        ?: "")
-            }
+class AnalyzeAnnotation(val type: ClassReference, val parameter: List<AnnotationParameter>) {
+
+    constructor(annotation: PsiAnnotation) : this(
+            ClassReference(annotation),
+            annotation.parameterList.attributes
+                    .map {
+                        AnnotationParameter(it.attributeName, it.literalValue
+                                ?: "")
+                    }
+    )
 
     fun attribute(name: String) = parameter.firstOrNull { it.name == name }
 }
@@ -323,14 +432,33 @@ private fun PsiType.isCollectionOrMap(): Boolean {
     return PsiAdapter.isCollectionType(PsiElementFactory.getInstance(project), this)
             || PsiAdapter.isMapType(PsiElementFactory.getInstance(project), this)
 }
-abstract class Variable(val name: String, type: PsiType, val annotations: List<AnalyzeAnnotation>) {
-    val types: List<ClassReference> = type.structureRelevantTypes().map { it.reference() }
-    val isCollection: Boolean = type is PsiArrayType || type.isCollectionOrMap()
-    val isPrimitive: Boolean = type is PsiPrimitiveType
-    val typeDisplay: String = type.presentableText
+class VariableType(val name: String, val annotations: List<AnalyzeAnnotation>, val types: List<ClassReference>,
+                   val isCollection: Boolean, val isPrimitive: Boolean, val typeDisplay: String)
+
+abstract class Variable(variable: VariableType) {
+    val name: String = variable.name
+    val annotations: List<AnalyzeAnnotation> = variable.annotations
+    val types: List<ClassReference> = variable.types
+    val isCollection: Boolean = variable.isCollection
+    val isPrimitive: Boolean = variable.isPrimitive
+    val typeDisplay: String = variable.typeDisplay
+
+    constructor(name: String, type: PsiType, annotations: List<AnalyzeAnnotation>) : this(VariableType(
+            name,
+            annotations,
+            type.structureRelevantTypes().map { it.reference() },
+            type is PsiArrayType || type.isCollectionOrMap(),
+            type is PsiPrimitiveType,
+            type.presentableText
+    ))
+
+    fun variableType() = VariableType(name, annotations, types, isCollection, isPrimitive, typeDisplay)
 }
 
-class MethodParameter(name: String, type: PsiType, annotations: List<AnalyzeAnnotation>) : Variable(name, type, annotations)
+class MethodParameter : Variable {
+    constructor(name: String, type: PsiType, annotations: List<AnalyzeAnnotation>) : super(name, type, annotations)
+    constructor(variable: VariableType) : super(variable)
+}
 
 fun PsiType?.structureRelevantTypes(): List<PsiClass> {
     if (this == null) return emptyList()
@@ -373,5 +501,7 @@ fun PsiMethod.reference() = MethodReference(containingClass!!.reference(), id())
 fun PsiMethod.annotationsMapped() = annotations.map { AnalyzeAnnotation(it) }
 fun PsiParameter.annotationsMapped() = annotations.map { AnalyzeAnnotation(it) }
 fun PsiField.annotationsMapped() = annotations.map { AnalyzeAnnotation(it) }
+// only calls assigned to an annotated variable carry annotations, other parents have no modifier list
+fun PsiCall.annotationsMapped() = (parent as? PsiModifierListOwner)?.modifierList?.annotations?.map { AnalyzeAnnotation(it) } ?: emptyList()
 fun PsiModifierList.visibility() = MethodVisibility.values().asSequence().firstOrNull { hasModifierProperty(it.value) }
         ?: MethodVisibility.PACKAGE_LOCAL
@@ -0,0 +1,30 @@
+package com.kn.diagrams.generator.graph
+
+/**
+ * dense int ids for classes and methods, so the relations of the graph are not keyed by concatenated strings.
+ * Ids are never reused - removed classes only leave gaps.
+ */
+class SymbolTable {
+    private val classSymbols: MutableMap<String, Int> = HashMap()
+    private val methodSymbols: MutableMap<String, Int> = HashMap()
+
+    fun register(clazz: AnalyzeClass) {
+        symbolOf(clazz.reference)
+        clazz.methods.keys.forEach { methodSymbol(it) }
+    }
+
+    fun symbolOf(clazz: ClassReference) = classSymbols.getOrPut(clazz.id()) { classSymbols.size }
+
+    fun symbolOf(method: AnalyzeMethod) = methodSymbol(method.id)
+
+    fun methodSymbol(methodId: String) = methodSymbols.getOrPut(methodId) { methodSymbols.size }
+
+    // lookups of the search must not add new symbols because they only hold the read lock
+    fun find(clazz: ClassReference) = classSymbols[clazz.id()] ?: -1
+
+    fun find(method: AnalyzeMethod) = methodSymbols[method.id] ?: -1
+
+    fun classCount() = classSymbols.size
+
+    fun methodCount() = methodSymbols.size
+}
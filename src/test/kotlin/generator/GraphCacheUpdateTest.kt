@@ -0,0 +1,60 @@
+package generator
+
+import com.intellij.openapi.command.WriteCommandAction
+import com.intellij.psi.PsiDocumentManager
+import com.kn.diagrams.generator.config.CallConfiguration
+import com.kn.diagrams.generator.graph.GraphCacheService
+import org.junit.Test
+import testdata.oneComponent.domain.TestManager
+import testdata.oneComponent.richclient.impl.TestFacadeImpl
+import kotlin.reflect.KClass
+
+class GraphCacheUpdateTest : AbstractCallDiagramGeneratorTest() {
+
+    @Test
+    fun testChangedCalledClass() {
+        val before = callDiagram(TestFacadeImpl::load)
+
+        // the call of the service stays valid, but resolves to another method now
+        edit(TestManager::class, "TestData load();", "TestData load(String... keys);")
+        val updated = callDiagram(TestFacadeImpl::load)
+
+        assertFalse(before == updated)
+        assertEquals(freshDiagram { callDiagram(TestFacadeImpl::load) }, updated)
+    }
+
+    @Test
+    fun testChangedSuperType() {
+        val removeDeprecated: CallConfiguration.() -> Unit = {
+            graphRestriction.removeByAnnotation = "Deprecated"
+        }
+        callDiagram(TestFacadeImpl::load, removeDeprecated)
+
+        // the implementation of the manager inherits the annotation and must be removed as well
+        edit(TestManager::class, "public interface TestManager", "@Deprecated\npublic interface TestManager")
+        val updated = callDiagram(TestFacadeImpl::load, removeDeprecated)
+
+        assertEquals(freshDiagram { callDiagram(TestFacadeImpl::load, removeDeprecated) }, updated)
+
+        // and comes back when the annotation is removed again
+        edit(TestManager::class, "@Deprecated\n", "")
+        val restored = callDiagram(TestFacadeImpl::load, removeDeprecated)
+
+        assertEquals(freshDiagram { callDiagram(TestFacadeImpl::load, removeDeprecated) }, restored)
+    }
+
+    private fun edit(clazz: KClass<*>, text: String, replacement: String) {
+        val file = clazz.asPsiClass().containingFile
+        WriteCommandAction.runWriteCommandAction(project) {
+            val documents = PsiDocumentManager.getInstance(project)
+            val document = documents.getDocument(file)!!
+            document.setText(document.text.replace(text, replacement))
+            documents.commitDocument(document)
+        }
+    }
+
+    private fun freshDiagram(generation: () -> String): String {
+        GraphCacheService.instance(project).clear()
+        return generation()
+    }
+}
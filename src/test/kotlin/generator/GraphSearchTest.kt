@@ -0,0 +1,36 @@
+package generator
+
+import com.kn.diagrams.generator.graph.*
+import org.junit.Test
+import testdata.oneComponent.service.impl.TestServiceImpl
+
+class GraphSearchTest : AbstractGeneratorTest() {
+
+    @Test
+    fun testParallelSubtreesFindTheSequentialChains() {
+        val rootClass = TestServiceImpl::class.asPsiClass()
+        val classification = ProjectClassification().also { defaultClassification(it) }
+        val restriction = GraphRestriction().apply {
+            cutTests = false
+            cutDataAccess = false
+            cutMappings = false
+        }
+        val traversal = GraphTraversal().apply {
+            forwardDepth = 9
+            backwardDepth = 9
+        }
+
+        GraphCacheService.instance(project).withCache(rootClass, emptyList(), classification, GraphRestrictionFilter(classification, restriction), traversal) { cache ->
+            val roots = rootClass.methods.map { cache.methodFor(it)!! }
+            val filter = GraphTraversalFilter(roots.first(), classification, traversal)
+
+            roots.forEach { root ->
+                listOf(Direction.Forward, Direction.Backward).forEach { direction ->
+                    val context = FindContext(cache, direction, filter, 9, EdgeMode.TypesAndMethods, cache.foreignRoots(roots))
+
+                    assertEquals("$root $direction", context.findSequentially(root), context.find(root))
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package graph
+
+import com.kn.diagrams.generator.graph.EdgeStore
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class EdgeStoreTest {
+
+    private fun <P : Any> EdgeStore<P>.edgesOf(node: Int) = (start(node) until end(node)).map { target(it) to payload(it) }
+
+    @Test
+    fun testEdgesKeepTheirOrderPerNode() {
+        val edges = listOf(2 to 0, 0 to 1, 2 to 1, 0 to 2, 2 to 2)
+        val store = EdgeStore.of(4, edges, { it.first }, { it.second })
+
+        assertEquals(listOf(1 to (0 to 1), 2 to (0 to 2)), store.edgesOf(0))
+        assertEquals(emptyList<Any>(), store.edgesOf(1))
+        assertEquals(listOf(0 to (2 to 0), 1 to (2 to 1), 2 to (2 to 2)), store.edgesOf(2))
+        assertEquals(0, store.degree(3))
+        assertEquals(3, store.degree(2))
+    }
+
+    @Test
+    fun testUnknownNodesHaveNoEdges() {
+        val store = EdgeStore.of(2, listOf(0 to 1), { it.first }, { it.second })
+
+        assertEquals(0, store.degree(-1))
+        assertEquals(0, store.degree(2))
+        assertEquals(0, store.degree(100))
+    }
+
+    @Test
+    fun testEmpty() {
+        val store = EdgeStore.empty<String>()
+
+        assertEquals(0, store.degree(0))
+        assertEquals(0, EdgeStore.of(3, emptyList<Pair<Int, Int>>(), { it.first }, { it.second }).degree(1))
+    }
+}
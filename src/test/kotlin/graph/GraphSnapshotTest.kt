@@ -0,0 +1,100 @@
+package graph
+
+import com.kn.diagrams.generator.graph.*
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.nio.file.Files
+import java.nio.file.Path
+
+class GraphSnapshotTest {
+
+    private lateinit var directory: Path
+    private lateinit var snapshotFile: Path
+
+    private val service = classReference("com.example.Service", absolutePath = "/src/com/example/Service.java")
+    private val repository = classReference("com.example.data.Repository", ClassType.Interface)
+    private val data = classReference("com.example.data.Data")
+    private val find = method(repository, "find", variable("key", data), returnType = data)
+    private val load = method(service, "load", variable("key", data), returnType = data)
+    private val serviceClass = analyzeClass(service,
+            superTypes = listOf(classReference("com.example.AbstractService")),
+            annotations = listOf(annotation("org.example.Component", "value" to "service")),
+            fields = listOf(AnalyzeField(variable("repository", repository), service, MethodVisibility.PRIVATE, false)),
+            methods = listOf(load),
+            calls = listOf(AnalyzeCall(MethodReference(service, load.id), MethodReference(repository, find.id), emptyList(), 3))
+    )
+    private val stamp = FileStamp(42, 1024)
+
+    @Before
+    fun setUp() {
+        directory = Files.createTempDirectory("snapshot")
+        snapshotFile = directory.resolve("index")
+    }
+
+    @After
+    fun tearDown() {
+        directory.toFile().deleteRecursively()
+    }
+
+    @Test
+    fun testRoundTrip() {
+        GraphSnapshot.save(snapshotFile, listOf(serviceClass, analyzeClass(repository, methods = listOf(find))),
+                mapOf(service.id() to stamp, repository.id() to stamp))
+
+        val restored = GraphSnapshot.load(snapshotFile)!!.restore(service.id(), stamp, null)!!
+
+        assertEquals(service, restored.reference)
+        assertEquals(service.absolutePath, restored.reference.absolutePath)
+        assertEquals(ClassType.Class, restored.classType)
+        assertEquals(serviceClass.superTypes, restored.superTypes)
+        assertNull(restored.superTypes.single().absolutePath)
+        assertEquals("Component", restored.annotations.single().type.name)
+        assertEquals("service", restored.annotations.single().attribute("value")?.value)
+
+        val field = restored.fields.single()
+        assertEquals("repository", field.name)
+        assertEquals(listOf(repository), field.types)
+        assertEquals(service, field.containingClass)
+        assertEquals(MethodVisibility.PRIVATE, field.visibility)
+
+        val method = restored.methods.getValue(load.id)
+        assertEquals("load", method.name)
+        assertEquals(listOf(data), method.returnTypes)
+        assertEquals("key", method.parameter.single().name)
+        assertEquals(service.absolutePath, method.containingClass.absolutePath)
+
+        val call = restored.calls.getValue(service.id()).single()
+        assertEquals(load.id, call.source.method)
+        assertEquals(MethodReference(repository, find.id), call.target)
+        assertEquals(3, call.sequence)
+    }
+
+    @Test
+    fun testChangedOrUnknownClassesAreNotRestored() {
+        GraphSnapshot.save(snapshotFile, listOf(serviceClass), mapOf(service.id() to stamp))
+        val snapshot = GraphSnapshot.load(snapshotFile)!!
+
+        assertNull(snapshot.restore(service.id(), FileStamp(43, 1024), null))
+        assertNull(snapshot.restore(repository.id(), stamp, null))
+    }
+
+    @Test
+    fun testSaveWhileLoaded() {
+        GraphSnapshot.save(snapshotFile, listOf(serviceClass), mapOf(service.id() to stamp))
+        val loaded = GraphSnapshot.load(snapshotFile)!!
+
+        val newStamp = FileStamp(43, 1024)
+        GraphSnapshot.save(snapshotFile, listOf(serviceClass), mapOf(service.id() to newStamp))
+
+        assertNotNull(loaded.restore(service.id(), stamp, null))
+        assertNotNull(GraphSnapshot.load(snapshotFile)!!.restore(service.id(), newStamp, null))
+        assertEquals(1, directory.toFile().list()!!.size)
+    }
+
+    @Test
+    fun testMissingSnapshot() {
+        assertNull(GraphSnapshot.load(snapshotFile))
+    }
+}
@@ -0,0 +1,51 @@
+package graph
+
+import com.kn.diagrams.generator.graph.AnalyzeClass
+import com.kn.diagrams.generator.graph.ClassType
+import com.kn.diagrams.generator.graph.InheritanceClosure
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class InheritanceClosureTest {
+
+    private val base = classReference("com.example.Base")
+    private val middle = classReference("com.example.Middle")
+    private val leaf = classReference("com.example.Leaf")
+    private val marker = classReference("com.example.Marker", ClassType.Interface)
+    private val unknown = classReference("org.example.Unknown")
+
+    private val baseClass = analyzeClass(base, annotations = listOf(annotation("org.example.Component")))
+    private val middleClass = analyzeClass(middle, superTypes = listOf(base, unknown))
+    private val leafClass = analyzeClass(leaf, superTypes = listOf(middle, marker), annotations = listOf(annotation("org.example.Deprecated")))
+    private val markerClass = analyzeClass(marker, annotations = listOf(annotation("org.example.Marked")))
+
+    private fun closureOf(vararg classes: AnalyzeClass) = InheritanceClosure(classes.associateBy { it.id() })
+
+    @Test
+    fun testTransitiveSuperClasses() {
+        val closure = closureOf(baseClass, middleClass, leafClass, markerClass)
+
+        assertEquals(setOf(middleClass, baseClass, markerClass), closure.superClassesOf(leaf))
+        assertEquals(setOf(baseClass), closure.superClassesOf(middle))
+        assertEquals(emptySet<Any>(), closure.superClassesOf(base))
+        assertEquals(emptySet<Any>(), closure.superClassesOf(unknown))
+    }
+
+    @Test
+    fun testAnnotationsIncludeSuperTypes() {
+        val closure = closureOf(baseClass, middleClass, leafClass, markerClass)
+
+        assertEquals(setOf("Deprecated", "Component", "Marked"), closure.annotationsOf(leaf).map { it.type.name }.toSet())
+        assertEquals(setOf("Component"), closure.annotationsOf(middle).map { it.type.name }.toSet())
+    }
+
+    @Test
+    fun testCyclicHierarchies() {
+        val first = analyzeClass(base, superTypes = listOf(middle))
+        val second = analyzeClass(middle, superTypes = listOf(base))
+        val closure = closureOf(first, second)
+
+        assertEquals(setOf(second), closure.superClassesOf(base))
+        assertEquals(setOf(first), closure.superClassesOf(middle))
+    }
+}
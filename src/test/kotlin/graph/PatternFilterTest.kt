@@ -0,0 +1,63 @@
+package graph
+
+import com.kn.diagrams.generator.graph.emptyOr
+import com.kn.diagrams.generator.graph.notEmptyAnd
+import com.kn.diagrams.generator.graph.patterns
+import org.junit.Assert.*
+import org.junit.Test
+
+class PatternFilterTest {
+
+    @Test
+    fun testWildcards() {
+        val filter = "*Service;com.example.data.*".patterns()
+
+        assertTrue(filter.matches("OrderService"))
+        assertTrue(filter.matches("com.example.data.Repository"))
+        assertFalse(filter.matches("OrderServiceImpl"))
+        assertFalse(filter.matches("com.example.Repository"))
+    }
+
+    @Test
+    fun testCaseInsensitive() {
+        val filter = "*service".patterns()
+
+        assertTrue(filter.matches("OrderService"))
+        assertTrue(filter.matches("ORDERSERVICE"))
+    }
+
+    @Test
+    fun testEmptySegmentsMatchOnlyEmptyValues() {
+        val filter = "Service;;Repository;".patterns()
+
+        assertTrue(filter.matches("service"))
+        assertTrue(filter.matches("repository"))
+        assertTrue(filter.matches(""))
+        assertFalse(filter.matches("Other"))
+    }
+
+    @Test
+    fun testEmptyFilter() {
+        val filter = "".patterns()
+
+        assertTrue(filter.isEmpty())
+        assertFalse(filter.matches(""))
+        assertFalse(filter.matches("Service"))
+    }
+
+    @Test
+    fun testSameFilterIsShared() {
+        assertSame("*Service".patterns(), "*Service".patterns())
+    }
+
+    @Test
+    fun testIncludeAndExclude() {
+        assertTrue(emptyOr("") { fail("empty filters are not evaluated"); false })
+        assertTrue(emptyOr("*Service") { it.matches("OrderService") })
+        assertFalse(emptyOr("*Service") { it.matches("OrderRepository") })
+
+        assertFalse(notEmptyAnd("") { fail("empty filters are not evaluated"); true })
+        assertTrue(notEmptyAnd("*Service") { it.matches("OrderService") })
+        assertFalse(notEmptyAnd("*Service") { it.matches("OrderRepository") })
+    }
+}
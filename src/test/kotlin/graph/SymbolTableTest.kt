@@ -0,0 +1,36 @@
+package graph
+
+import com.kn.diagrams.generator.graph.SymbolTable
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class SymbolTableTest {
+
+    private val service = classReference("com.example.Service")
+    private val repository = classReference("com.example.Repository")
+
+    @Test
+    fun testDenseIds() {
+        val symbols = SymbolTable()
+        symbols.register(analyzeClass(service, methods = listOf(method(service, "load"), method(service, "save"))))
+
+        assertEquals(0, symbols.symbolOf(service))
+        assertEquals(1, symbols.symbolOf(repository))
+        assertEquals(0, symbols.symbolOf(service))
+        assertEquals(2, symbols.classCount())
+        assertEquals(0, symbols.find(method(service, "load")))
+        assertEquals(1, symbols.find(method(service, "save")))
+        assertEquals(2, symbols.symbolOf(method(repository, "find")))
+        assertEquals(3, symbols.methodCount())
+    }
+
+    @Test
+    fun testFindDoesNotAddSymbols() {
+        val symbols = SymbolTable()
+
+        assertEquals(-1, symbols.find(service))
+        assertEquals(-1, symbols.find(method(service, "load")))
+        assertEquals(0, symbols.classCount())
+        assertEquals(0, symbols.methodCount())
+    }
+}
@@ -0,0 +1,37 @@
+package graph
+
+import com.kn.diagrams.generator.graph.*
+
+fun classReference(qualifiedName: String, classType: ClassType = ClassType.Class, absolutePath: String? = null) = ClassReference(
+        qualifiedName.substringAfterLast("."),
+        qualifiedName.substringAfterLast("."),
+        qualifiedName.substringBeforeLast("."),
+        classType,
+        absolutePath
+)
+
+fun annotation(qualifiedName: String, vararg parameter: Pair<String, String>) =
+        AnalyzeAnnotation(classReference(qualifiedName), parameter.map { (name, value) -> AnnotationParameter(name, value) })
+
+fun variable(name: String, vararg types: ClassReference) = VariableType(name, emptyList(), types.toList(), false, false, types.firstOrNull()?.name ?: "int")
+
+fun method(clazz: ClassReference, name: String, vararg parameter: VariableType, returnType: ClassReference? = null) = AnalyzeMethod(
+        name,
+        emptyList(),
+        clazz.qualifiedName() + ";" + name + "(" + parameter.joinToString(",") { it.typeDisplay } + ")",
+        clazz,
+        MethodVisibility.PUBLIC,
+        returnType?.name ?: "void",
+        listOfNotNull(returnType),
+        parameter.map { MethodParameter(it) },
+        false,
+        null
+)
+
+fun analyzeClass(reference: ClassReference,
+                 superTypes: List<ClassReference> = emptyList(),
+                 annotations: List<AnalyzeAnnotation> = emptyList(),
+                 fields: List<AnalyzeField> = emptyList(),
+                 methods: List<AnalyzeMethod> = emptyList(),
+                 calls: List<AnalyzeCall> = emptyList()
+) = AnalyzeClass(reference, reference.classType, fields, methods.associateBy { it.id() }, calls.groupBy { it.source.classReference.id() }, superTypes, annotations)